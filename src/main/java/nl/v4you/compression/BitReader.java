@@ -0,0 +1,142 @@
+package nl.v4you.compression;
+
+/**
+ * Reads bits first bit highest from a byte array through a 64 bit accumulator. Reads after
+ * the end give zero bits.
+ */
+final class BitReader {
+    private byte buf[];
+    private int pos;
+    private int end;
+    private long acc; // the lowest accBits bits are unread
+    private int accBits;
+
+    void reset(byte buf[], int pos, int end) {
+        this.buf = buf;
+        this.pos = pos;
+        this.end = end;
+        acc = 0;
+        accBits = 0;
+    }
+
+    /**
+     * Fills the accumulator to at least 57 bits.
+     */
+    void refill() {
+        if (pos+8<=end) {
+            int n = (64-accBits) >>> 3;
+            for (int i=0; i<n; i++) {
+                acc = (acc << 8) | (buf[pos+i] & 0xff);
+            }
+            pos += n;
+            accBits += n << 3;
+            return;
+        }
+        while (accBits<=56) {
+            acc = (acc << 8) | (pos<end ? buf[pos] & 0xff : 0);
+            pos++;
+            accBits += 8;
+        }
+    }
+
+    int available() {
+        return accBits;
+    }
+
+    /**
+     * Returns the next L (1..57) bits without consuming them, at least L bits must be available.
+     */
+    int peekBits(int L) {
+        return (int)(acc >>> (accBits-L)) & ((1 << L) - 1);
+    }
+
+    void skipBits(int L) {
+        accBits -= L;
+    }
+
+    /**
+     * Decodes symbols into out[off..end) with a lookup table of (symbol << 8) | length entries
+     * indexed by the next tableBits bits. Stops at an entry of 0 (a longer code) and returns
+     * the index reached.
+     */
+    int decode(int table[], int tableBits, byte out[], int off, int end) {
+        long acc = this.acc;
+        int accBits = this.accBits;
+        int mask = (1 << tableBits) - 1;
+        int perRefill = 57 / tableBits;
+        while (off<end) {
+            if (accBits<=56) {
+                this.acc = acc;
+                this.accBits = accBits;
+                refill();
+                acc = this.acc;
+                accBits = this.accBits;
+            }
+            // at least 57 bits buffered, enough for perRefill codes without checks
+            int n = Math.min(perRefill, end-off);
+            for (int i=0; i<n; i++) {
+                int e = table[(int)(acc >>> (accBits-tableBits)) & mask];
+                if (e==0) {
+                    this.acc = acc;
+                    this.accBits = accBits;
+                    return off;
+                }
+                out[off++] = (byte)(e >>> 8);
+                accBits -= e & 0xff;
+            }
+        }
+        this.acc = acc;
+        this.accBits = accBits;
+        return off;
+    }
+
+    long readBits(int L) {
+        if (L>32) {
+            long hi = readBits(L-32);
+            return (hi << 32) | readBits(32);
+        }
+        if (accBits<L) {
+            refill();
+        }
+        accBits -= L;
+        return (acc >>> accBits) & (0xFFFFFFFFL >>> (32-L));
+    }
+
+    /**
+     * Reads a varint at the next byte boundary.
+     */
+    long readSize() {
+        accBits &= ~7;
+        int shift=0;
+        int L=0;
+        int i=(int)readBits(8);
+        while ((i&0x80)!=0) {
+            L|=(i&0x7F)<<shift;
+            shift += 7;
+            i=(int)readBits(8);
+        }
+        return L | (i<<shift);
+    }
+
+    /**
+     * Returns the position of the byte holding the next unread bit.
+     */
+    int position() {
+        return pos - (accBits >>> 3);
+    }
+
+    /**
+     * Reads len bytes at the next byte boundary.
+     */
+    void readBytes(byte b[], int off, int len) throws CompressionException {
+        // whole bytes in the accumulator are unread, refill() may have gone past the end
+        pos -= accBits >>> 3;
+        acc = 0;
+        accBits = 0;
+        if (len<0 || len>end-pos) {
+            throw new CompressionException("Huffman: input truncated");
+        }
+        System.arraycopy(buf, pos, b, off, len);
+        pos += len;
+    }
+}
@@ -0,0 +1,111 @@
+package nl.v4you.compression;
+
+/**
+ * Writes bits first bit highest into a byte array through a 64 bit accumulator that is
+ * flushed 32 bits at a time. The caller makes sure the array is large enough, there are
+ * no capacity checks per write.
+ */
+final class BitWriter {
+    private byte buf[];
+    private int pos;
+    private long acc; // the lowest accBits bits are pending, accBits < 32 between calls
+    private int accBits;
+
+    void reset(byte buf[], int pos) {
+        this.buf = buf;
+        this.pos = pos;
+        acc = 0;
+        accBits = 0;
+    }
+
+    void writeBits(long b, int L) {
+        if (L>32) {
+            writeBits(b >>> 32, L-32);
+            L = 32;
+        }
+        acc = (acc << L) | (b & (0xFFFFFFFFL >>> (32-L)));
+        accBits += L;
+        if (accBits>=32) {
+            accBits -= 32;
+            int w = (int)(acc >>> accBits);
+            buf[pos] = (byte)(w >>> 24);
+            buf[pos+1] = (byte)(w >>> 16);
+            buf[pos+2] = (byte)(w >>> 8);
+            buf[pos+3] = (byte)w;
+            pos += 4;
+        }
+    }
+
+    /**
+     * Writes the code of every byte in src[off..off+len), codes of at most 32 bits.
+     */
+    void writeCodes(byte src[], int off, int len, long codes[], int codeLen[]) {
+        long acc = this.acc;
+        int accBits = this.accBits;
+        int pos = this.pos;
+        byte buf[] = this.buf;
+        for (int end=off+len; off<end; off++) {
+            int b = src[off] & 0xff;
+            int L = codeLen[b];
+            acc = (acc << L) | codes[b];
+            accBits += L;
+            if (accBits>=32) {
+                accBits -= 32;
+                int w = (int)(acc >>> accBits);
+                buf[pos] = (byte)(w >>> 24);
+                buf[pos+1] = (byte)(w >>> 16);
+                buf[pos+2] = (byte)(w >>> 8);
+                buf[pos+3] = (byte)w;
+                pos += 4;
+            }
+        }
+        this.acc = acc;
+        this.accBits = accBits;
+        this.pos = pos;
+    }
+
+    /**
+     * Writes len bytes, at a byte boundary they are copied as is.
+     */
+    void writeBytes(byte b[], int off, int len) {
+        if ((accBits & 7)!=0) {
+            for (int i=0; i<len; i++) {
+                writeBits(b[off+i], 8);
+            }
+            return;
+        }
+        flush();
+        System.arraycopy(b, off, buf, pos, len);
+        pos += len;
+    }
+
+    /**
+     * Writes the varint at the next byte boundary.
+     */
+    void writeSize(long L) {
+        flush();
+        while (L>0x7FL) {
+            buf[pos++]=(byte)(0x80L | L & 0x7FL);
+            L>>>=7;
+        }
+        buf[pos++]=(byte)(L & 0x7FL);
+    }
+
+    /**
+     * Writes the pending bits, the last byte is padded with zero bits.
+     */
+    void flush() {
+        while (accBits>0) {
+            accBits -= 8;
+            buf[pos++] = (byte)(accBits>=0 ? acc >>> accBits : acc << -accBits);
+        }
+        accBits = 0;
+    }
+
+    /**
+     * Returns the position after the last written (or pending) byte.
+     */
+    int position() {
+        return pos + (accBits+7 >>> 3);
+    }
+}
@@ -0,0 +1,179 @@
+package nl.v4you.compression;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Runs the blocks of LZVParallel and HuffmanParallel as tasks on an executor. Encoded blocks
+ * are written in order with at most two blocks per thread in memory.
+ */
+final class BlockParallel {
+    static final ForkJoinPool POOL = new ForkJoinPool();
+
+    private final Executor executor;
+    private final String name; // prefix of the messages
+    private final int maxPending;
+
+    BlockParallel(Executor executor, String name) {
+        this.executor = executor;
+        this.name = name;
+        int threads = executor instanceof ForkJoinPool ? ((ForkJoinPool)executor).getParallelism() : Runtime.getRuntime().availableProcessors();
+        this.maxPending = 2 * threads;
+    }
+
+    <T> Future<T> submit(Callable<T> c) {
+        FutureTask<T> task = new FutureTask<>(c);
+        executor.execute(task);
+        return task;
+    }
+
+    <T> T get(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException(name + ": interrupted");
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(name + ": block failed", e.getCause());
+        }
+    }
+
+    /**
+     * Runs the tasks and waits until all are done.
+     */
+    void runAll(List<? extends Callable<?>> tasks) throws IOException {
+        List<Future<?>> futures = new ArrayList<>(tasks.size());
+        for (Callable<?> c : tasks) {
+            futures.add(submit(c));
+        }
+        for (Future<?> f : futures) {
+            get(f);
+        }
+    }
+
+    OrderedWriter writer(OutputStream os) {
+        return new OrderedWriter(os);
+    }
+
+    /**
+     * Writes the blocks returned by the tasks in the order the tasks were added.
+     */
+    final class OrderedWriter {
+        private final OutputStream os;
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+
+        private OrderedWriter(OutputStream os) {
+            this.os = os;
+        }
+
+        void add(Callable<byte[]> c) throws IOException {
+            if (pending.size()==maxPending) {
+                os.write(get(pending.removeFirst()));
+            }
+            pending.add(submit(c));
+        }
+
+        /**
+         * Writes the blocks of the remaining tasks.
+         */
+        void finish() throws IOException {
+            while (!pending.isEmpty()) {
+                os.write(get(pending.removeFirst()));
+            }
+        }
+    }
+
+    private static abstract class Codec {
+        abstract byte[] encode(byte b[]) throws IOException;
+        abstract byte[] decode(byte b[]) throws IOException;
+    }
+
+    /**
+     * Scaling benchmark of LZVParallel and HuffmanParallel: throughput versus number of threads
+     * on a generated XML corpus.
+     */
+    public static void main(String[] args) throws IOException {
+        StringBuilder sb = new StringBuilder("<records>");
+        Random r = new Random(42);
+        while (sb.length() < 64 * 1024 * 1024) {
+            sb.append("<record id=\"").append(r.nextInt(1000000)).append("\">");
+            sb.append("<title>Title ").append(r.nextInt(10000)).append("</title>");
+            sb.append("<author>Author ").append(Integer.toHexString(r.nextInt())).append("</author>");
+            sb.append("</record>\n");
+        }
+        byte original[] = sb.toString().getBytes(StandardCharsets.UTF_8);
+
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads=1; ; threads*=2) {
+            if (threads>cores) {
+                threads = cores;
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            final LZVParallel lzv = new LZVParallel(pool, LZVFrame.BLOCK_SIZE_DEFAULT, true);
+            final HuffmanParallel huff = new HuffmanParallel(pool, HuffmanOutputStream.BLOCK_SIZE_DEFAULT);
+            benchmark("LZV    ", threads, original, new Codec() {
+                @Override
+                byte[] encode(byte b[]) throws IOException {
+                    return lzv.compress(b);
+                }
+
+                @Override
+                byte[] decode(byte b[]) throws IOException {
+                    return lzv.decompress(b);
+                }
+            });
+            benchmark("Huffman", threads, original, new Codec() {
+                @Override
+                byte[] encode(byte b[]) throws IOException {
+                    return huff.encode(b);
+                }
+
+                @Override
+                byte[] decode(byte b[]) throws IOException {
+                    return huff.decode(b);
+                }
+            });
+            pool.shutdown();
+            if (threads==cores) {
+                break;
+            }
+        }
+    }
+
+    private static void benchmark(String name, int threads, byte original[], Codec codec) throws IOException {
+        byte encoded[] = null;
+        byte decoded[] = null;
+        long te = Long.MAX_VALUE;
+        long td = Long.MAX_VALUE;
+        for (int i=0; i<5; i++) {
+            long t1 = System.nanoTime();
+            encoded = codec.encode(original);
+            long t2 = System.nanoTime();
+            decoded = codec.decode(encoded);
+            long t3 = System.nanoTime();
+            te = Math.min(te, t2-t1);
+            td = Math.min(td, t3-t2);
+        }
+        System.err.println(String.format("%s threads %2d : encode %7.1f MB/s, decode %7.1f MB/s, ratio %.3f, ok %s",
+                name, threads, original.length * 1000.0 / te, original.length * 1000.0 / td,
+                (double)encoded.length / original.length, Arrays.equals(original, decoded)));
+    }
+}
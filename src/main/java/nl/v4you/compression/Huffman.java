@@ -9,125 +9,125 @@ import java.util.Arrays;
 // 0 : uncompressed (uncompressed_length + data)
 // 1 : UNQ=1 (uncompressed_length + byte value(1 byte))
 // 2 : compressed (uncompressed_length + UNQ (1 byte) + partial_table (if UNQ<256) + code_length_table + data)
-// 3 : reserved
-// 4 : reserved
-// 5 : reserved
-// 6 : reserved
+// 3 : compressed in 4 streams (as 2, then the byte lengths of streams 1-3 + the 4 streams, each byte aligned)
+//     stream k holds the codes of input bytes [k*S, (k+1)*S) with S = (uncompressed_length+3)/4
+// 4 : compressed with the table of the previous block (uncompressed_length + data), see HuffmanOutputStream
+// 5 : as 4 in 4 streams (uncompressed_length + byte lengths of streams 1-3 + the 4 streams)
+// 6 : compressed with a static table (table id + uncompressed_length + data), see HuffmanTable
 
 // partial table: byte values are written from high to low, except for ranges that are denoted low-high: "d","a" denotes 2 values, "a","d" denotes the range "a"-"d"
 //                TODO: because bytes are written high to low, towards the end less bits are needed to write the values
 
 // length table: 1 byte for the maximum length, 3 bits for the minimum length (to support 1-8), then the table itself (UNQ entries)
+//               codes are written with at most 11 bits (MAX_CODE_LEN), the decoder accepts longer codes as well
 
 public class Huffman {
-    private static int PREDICT_SIZE = 2;
+    private static int PREDICT_SIZE = 3;
     private static int PREDICT_UNCOMPRESSED = 0;
-    private static int PREDICT_PARTIAL_TABLE = 1;
+    private static int PREDICT_PREVIOUS_TABLE = 1; // before PREDICT_PARTIAL_TABLE, so a tie reuses the table
+    private static int PREDICT_PARTIAL_TABLE = 2;
+
+    static final int MODE_UNCOMPRESSED = 0;
+    static final int MODE_UNQ_EQ_1 = 1;
+    static final int MODE_COMPRESSED = 2;
+    static final int MODE_COMPRESSED_4 = 3;
+    static final int MODE_PREVIOUS_TABLE = 4;
+    static final int MODE_PREVIOUS_TABLE_4 = 5;
+    static final int MODE_STATIC_TABLE = 6;
+
+    // inputs of at least this size are written as 4 streams, which are decoded interleaved
+    private static final int MULTI_STREAM_MIN = 4096;
+    // the encoded size of a larger input could exceed the largest byte array
+    static final int MAX_INPUT = Integer.MAX_VALUE - 64;
+
+    // decoder: codes up to TABLE_LOG bits are decoded with one lookup of the next TABLE_LOG bits,
+    // longer codes continue bit by bit from the canonical first code per length
+    private static final int TABLE_LOG = 11;
+    // the encoder limits codes to the table size, longer codes only occur in older streams
+    static final int MAX_CODE_LEN = TABLE_LOG;
 
-    private static int MODE_UNCOMPRESSED = 0;
-    private static int MODE_UNQ_EQ_1 = 1;
-    private static int MODE_COMPRESSED = 2;
-
-    private int tPtr;
     private int freq[] = new int[256];
-    private int weight[] = new int[10*256];
-    private int tree[] = new int[10*256];
+    private int segFreq[] = new int[4*256]; // frequencies per quarter of the input
+    private long sorted[] = new long[256]; // (frequency << 8) | byte value
+    private int parent[] = new int[2*256];
+    private long nodeWeight[] = new long[256];
+    private int depth[] = new int[256];
     private long codes[] = new long[256];
     private int codeLen[] = new int[256];
     private int UNQ = 0;
     private int minCodeLen = 10000;
     private int maxCodeLen = 0;
 
+    // table of the last encoded block that had one, for MODE_PREVIOUS_TABLE
+    private boolean hasLastTable = false;
+    private long lastCodes[] = new long[256];
+    private int lastCodeLen[] = new int[256];
+    private int lastMinCodeLen;
+    private int lastMaxCodeLen;
+    private boolean hasDecodeTable = false; // decoder tables hold the table of the last decoded block
+
     private int inSize = 0; // length of the input byte array
 
     private byte encodedBuf[] = new byte[32];
     private int encodedSize = 0; // length of the out buffer
-    private int encodedMask = 0;
 
     private byte decodedBuf[] = new byte[32];
     private int decodedSize;
 
-    private void writeBits(long b, int L) {
-        int bMask = 1<<(L-1);
-        while (bMask!=0) {
-            if (encodedMask == 0) {
-                encodedMask = 0x80;
-                encodedSize++;
-                if (encodedSize > encodedBuf.length) {
-                    encodedBuf = Arrays.copyOf(encodedBuf, 2 * encodedBuf.length);
-                }
-                encodedBuf[encodedSize - 1] = 0;
-            }
-            if ((b & bMask) != 0) {
-                encodedBuf[encodedSize - 1] |= encodedMask;
-            }
-            encodedMask >>>= 1;
-            bMask >>>= 1;
+    // the static encode() and decode() use the caller's arrays instead of encodedBuf and decodedBuf
+    private byte encodeDst[];
+    private int encodeDstOff;
+    private byte out[];
+    private int outOff;
+
+    private final long predict[] = new long[PREDICT_SIZE]; // in bits, 8 * inSize does not fit an int above 256 MB
+    private final int next[] = new int[257];
+
+    private int table[] = new int[1 << TABLE_LOG]; // (symbol << 8) | length, 0 for longer codes
+    private int symbols[] = new int[256]; // symbols in canonical order
+    private int lenCount[] = new int[257];
+    private int lenIndex[] = new int[257]; // index in symbols[] of the first code of each length
+    private long firstCode[] = new long[257];
+
+    private final BitWriter writer = new BitWriter();
+    private final BitReader reader = new BitReader();
+
+    // scratch instances of the static encode() and decode()
+    private static final ThreadLocal<Huffman> SCRATCH = new ThreadLocal<Huffman>() {
+        @Override
+        protected Huffman initialValue() {
+            return new Huffman();
         }
+    };
+
+    private void writeBits(long b, int L) {
+        writer.writeBits(b, L);
     }
 
     private void writeSize(long L) {
-        while (L>0x7FL) {
-            encodedBuf[encodedSize++]=(byte)(0x80L | L & 0x7FL);
-            L>>>=7;
-        }
-        encodedBuf[encodedSize++]=(byte)(L & 0x7FL);
+        writer.writeSize(L);
     }
 
     private long readSize() {
-        int shift=0;
-        int L=0;
-        int i=encodedBuf[encodedSize++] & 0xFF;
-        while ((i&0x80)!=0) {
-            L|=(i&0x7F)<<shift;
-            shift += 7;
-            i=encodedBuf[encodedSize++] & 0xFF;
-        }
-        return L | (i<<shift);
+        return reader.readSize();
     }
 
     private long readBits(int L) {
-        long x = 0;
-        int m = 1<<(L-1);
-        while (m!=0) {
-            if (encodedMask == 0) {
-                encodedMask = 0x80;
-                encodedSize++;
-            }
-            if ((encodedBuf[encodedSize-1] & encodedMask) != 0) {
-                x |= m;
-            }
-            encodedMask >>>= 1;
-            m >>>= 1;
-        }
-        return x;
+        return reader.readBits(L);
     }
 
-    private void calcCodeLengths(int t[], int ptr, int len) {
-        if (t[ptr]<256) {
-            codeLen[t[ptr]] = len;
-            if (minCodeLen >len) {
-                minCodeLen =len;
-            }
-            if (maxCodeLen <len) {
-                maxCodeLen =len;
-            }
-        }
-        else {
-            calcCodeLengths(t, t[ptr], len+1); // left
-        }
-        if (t[ptr+1]<256) {
-            codeLen[t[ptr+1]] = len;
-            if (minCodeLen >len) {
-                minCodeLen =len;
-            }
-            if (maxCodeLen <len) {
-                maxCodeLen =len;
-            }
+    /**
+     * Makes room for len encoded bytes and starts writing at the beginning of encodedBuf.
+     */
+    private void startWriting(long len) {
+        if (encodeDst!=null) {
+            writer.reset(encodeDst, encodeDstOff);
+            return;
         }
-        else {
-            calcCodeLengths(t, t[ptr+1], len+1); // right
+        if (encodedBuf.length<len) {
+            encodedBuf = new byte[(int)len];
         }
+        writer.reset(encodedBuf, 0);
     }
 
     private int bits(int a) {
@@ -193,72 +193,159 @@ public class Huffman {
         }
     }
 
-    private void countFrequency(byte a[], int inLen) {
-        Arrays.fill(freq, 0);
-        Arrays.fill(weight, 0);
-        for (int i=0; i<inLen; i++) {
-            freq[a[i] & 0xff]++;
+    private void countFrequency(byte a[], int off, int inLen) {
+        Arrays.fill(segFreq, 0);
+        Arrays.fill(codeLen, 0); // codes of the previous input would be assigned again
+        int seg = (inLen+3) / 4;
+        for (int k=0; k<4; k++) {
+            int base = k << 8;
+            for (int i=off+k*seg, end=off+Math.min(inLen, k*seg+seg); i<end; i++) {
+                segFreq[base + (a[i] & 0xff)]++;
+            }
         }
         UNQ=0;
         for (int i=0; i<256; i++) {
+            freq[i] = segFreq[i] + segFreq[256+i] + segFreq[512+i] + segFreq[768+i];
             if (freq[i]>0) {
-                weight[i] = freq[i];
                 UNQ++;
             }
         }
     }
 
-    private void buildTree() {
-        if (UNQ<2) {
-            return;
+    /**
+     * Returns the length in bytes of the codes of quarter k of the input.
+     */
+    private int streamLength(int k) {
+        long bits = 0;
+        for (int i=0; i<256; i++) {
+            bits += (long)segFreq[(k << 8) + i] * codeLen[i];
         }
-        tPtr = 256;
-        while (true) {
-            int from = -1;
-            int b;
-            for (b=0; b< tPtr; b++) {
-                if (weight[b]>0) {
-                    from = b;
-                    break;
-                }
+        return (int)((bits + 7) >>> 3);
+    }
+
+    /**
+     * Sets codeLen[] of the UNQ used byte values to Huffman code lengths of at most
+     * MAX_CODE_LEN bits. The symbols are sorted by frequency once, after that the tree is
+     * built in linear time with two queues: the sorted leaves and the internal nodes, which
+     * are created in increasing weight order.
+     */
+    private void buildCodeLengths() {
+        int n = 0;
+        for (int i=0; i<256; i++) {
+            if (freq[i]>0) {
+                sorted[n++] = ((long)freq[i] << 8) | i;
             }
-            if (b== tPtr -2) {
-                break;
+        }
+        Arrays.sort(sorted, 0, n);
+
+        // internal node k gets parent[k], leaves get parent[n-1+i], the root is node n-2
+        int leaf = 0;
+        int node = 0;
+        for (int k=0; k<n-1; k++) {
+            long w = 0;
+            for (int j=0; j<2; j++) {
+                if (leaf<n && (node==k || (sorted[leaf] >>> 8)<=nodeWeight[node])) {
+                    w += sorted[leaf] >>> 8;
+                    parent[n-1 + leaf++] = k;
+                }
+                else {
+                    w += nodeWeight[node];
+                    parent[node++] = k;
+                }
             }
-            int c;
-            for (c=b+1; c< tPtr; c++) {
-                if (weight[c]>0) {
-                    from = c;
-                    if (weight[c]<weight[b]) {
-                        int t=b;
-                        b=c;
-                        c=t;
-                    }
+            nodeWeight[k] = w;
+        }
+        depth[n-2] = 0;
+        for (int k=n-3; k>=0; k--) {
+            depth[k] = depth[parent[k]] + 1;
+        }
+        Arrays.fill(lenCount, 0);
+        for (int i=0; i<n; i++) {
+            lenCount[Math.min(depth[parent[n-1+i]] + 1, MAX_CODE_LEN)]++;
+        }
+
+        // codes cut to MAX_CODE_LEN overflow the Kraft sum, lengthen shorter codes until it fits
+        long kraft = 0;
+        for (int L=1; L<=MAX_CODE_LEN; L++) {
+            kraft += (long)lenCount[L] << (MAX_CODE_LEN-L);
+        }
+        while (kraft>1 << MAX_CODE_LEN) {
+            lenCount[MAX_CODE_LEN]--;
+            for (int L=MAX_CODE_LEN-1; L>0; L--) {
+                if (lenCount[L]!=0) {
+                    lenCount[L]--;
+                    lenCount[L+1] += 2;
                     break;
                 }
             }
-            for (int i = from+1; i < tPtr; i++) {
-                if (weight[i] > 0 && weight[i] < weight[c]) {
-                    if (weight[i] < weight[b]) {
-                        c = b;
-                        b = i;
-                    }
-                    else {
-                        c = i;
-                    }
+            kraft--;
+        }
+
+        // least frequent symbols get the longest codes
+        int i = 0;
+        for (int L=MAX_CODE_LEN; L>0; L--) {
+            for (int c=0; c<lenCount[L]; c++) {
+                codeLen[(int)(sorted[i++] & 0xff)] = L;
+                if (minCodeLen>L) {
+                    minCodeLen = L;
+                }
+                if (maxCodeLen<L) {
+                    maxCodeLen = L;
                 }
             }
-            weight[tPtr] = weight[b] + weight[c];
-            weight[b] = 0;
-            weight[c] = 0;
-            tree[tPtr] = b;
-            tree[tPtr +1] = c;
-            tPtr += 2;
         }
     }
 
-    private void compressInput(byte a[], int inLen) {
-        for (int i=0; i<inLen; i++) {
+    /**
+     * Returns code lengths of at most MAX_CODE_LEN bits for the frequencies f[] of the 256
+     * byte values, at least 2 of them non-zero.
+     */
+    static int[] codeLengths(int f[]) {
+        Huffman h = new Huffman();
+        System.arraycopy(f, 0, h.freq, 0, 256);
+        h.buildCodeLengths();
+        return h.codeLen.clone();
+    }
+
+    private void compressStreams(byte a[], int off, int inLen, boolean multiStream) {
+        if (multiStream) {
+            for (int k=0; k<3; k++) {
+                writeSize(streamLength(k));
+            }
+            int seg = (inLen+3) / 4;
+            for (int k=0; k<4; k++) {
+                writer.flush();
+                compressInput(a, off + k*seg, Math.min(inLen, k*seg+seg) - k*seg);
+            }
+        }
+        else {
+            compressInput(a, off, inLen);
+        }
+    }
+
+    /**
+     * Returns the number of bits needed with the last table, or Integer.MAX_VALUE if it has no
+     * code for one of the byte values.
+     */
+    private long previousTableBits() {
+        long bits = 0;
+        for (int i=0; i<256; i++) {
+            if (freq[i]!=0) {
+                if (lastCodeLen[i]==0) {
+                    return Long.MAX_VALUE;
+                }
+                bits += (long)freq[i] * lastCodeLen[i];
+            }
+        }
+        return bits;
+    }
+
+    private void compressInput(byte a[], int off, int len) {
+        if (maxCodeLen<=32) {
+            writer.writeCodes(a, off, len, codes, codeLen);
+            return;
+        }
+        for (int i=off; i<off+len; i++) {
             writeBits(codes[a[i]&0xff], codeLen[a[i]&0xff]);
         }
     }
@@ -298,47 +385,56 @@ public class Huffman {
         return L;
     }
 
-    private byte[] getTable(int L) {
-        byte T[] = new byte[L];
-        int idx=0;
+    private void writeTable() {
         int i=255;
         for (; i>=0 && freq[i] == 0; i--);
         int j=i;
         while (i>=0) {
             for (; i>=0 && freq[i] != 0; i--);
             i++;
-            T[idx++]=(byte)i;
+            writeBits(i, 8);
             if (i!=j) {
-                T[idx++]=(byte)j;
+                writeBits(j, 8);
             }
             i--;
             for (; i>=0 && freq[i] == 0; i--);
             j=i;
         }
-        return T;
     }
 
     public void encode(byte a[], int inLen) throws CompressionException {
+        encode(a, 0, inLen, false);
+    }
+
+    /**
+     * Encodes a[off..off+inLen). With previousTable set the table of the last block encoded
+     * with a table is reused when that is not larger than writing a new one, the block can
+     * then only be decoded after that block.
+     */
+    void encode(byte a[], int off, int inLen, boolean previousTable) throws CompressionException {
         encodedSize = 0;
-        encodedMask = 0;
         minCodeLen = 10000;
         maxCodeLen = 0;
+        hasDecodeTable = false; // shares lenCount[]
         if (a==null && inLen>0) {
             throw new CompressionException("a[]==null and inLen>0");
         }
         if (a==null) {
             return;
         }
-        if (a.length<inLen) {
+        if (off<0 || a.length-off<inLen) {
             throw new CompressionException("a[].length < inLen");
         }
         if (inLen==0) {
             return;
         }
+        if (inLen>MAX_INPUT) {
+            throw new CompressionException("Huffman: input larger than " + MAX_INPUT + " bytes");
+        }
         inSize = inLen;
-        countFrequency(a, inLen);
+        countFrequency(a, off, inLen);
         if (UNQ==1) {
-            encodedSize=0;
+            startWriting(1 + 10 + 1);
             writeBits(MODE_UNQ_EQ_1, 8);
             writeSize(inLen);
             for (int n=0; n<0x100; n++) {
@@ -347,26 +443,27 @@ public class Huffman {
                     break;
                 }
             }
+            writer.flush();
+            encodedSize = writer.position() - (encodeDst!=null ? encodeDstOff : 0);
             return;
         }
-        buildTree();
-        calcCodeLengths(tree, tPtr -2, 1);
+        buildCodeLengths();
         assignCanonicalCodes();
         //listCodes();
 
-        int predict[] = new int[PREDICT_SIZE];
         int maxCodeBitLen = bits(maxCodeLen-1);
 
-        predict[PREDICT_UNCOMPRESSED] = 8 * inSize;
+        predict[PREDICT_UNCOMPRESSED] = 8L * inSize;
         int partialTableLength = getTableLength();
         predict[PREDICT_PARTIAL_TABLE] = 8 /*UNQ*/ + 8 * partialTableLength + 8 /*codeMaxLen*/ + 3 /*codeMinLen*/ + maxCodeBitLen * UNQ;
-        int encodedDataBits = 0;
+        long encodedDataBits = 0;
         for (int i=0; i<256; i++) {
             if (freq[i]!=0) {
-                encodedDataBits += freq[i] * codeLen[i];
+                encodedDataBits += (long)freq[i] * codeLen[i];
             }
         }
         predict[PREDICT_PARTIAL_TABLE] += encodedDataBits;
+        predict[PREDICT_PREVIOUS_TABLE] = previousTable && hasLastTable ? previousTableBits() : Long.MAX_VALUE;
 
         int predictMin = 0;
         for (int i=1; i<PREDICT_SIZE; i++) {
@@ -375,22 +472,32 @@ public class Huffman {
             }
         }
 
+        if (predictMin==PREDICT_PREVIOUS_TABLE) {
+            System.arraycopy(lastCodes, 0, codes, 0, 256);
+            System.arraycopy(lastCodeLen, 0, codeLen, 0, 256);
+            minCodeLen = lastMinCodeLen;
+            maxCodeLen = lastMaxCodeLen;
+        }
+        boolean multiStream = predictMin!=PREDICT_UNCOMPRESSED && inSize>=MULTI_STREAM_MIN;
+
+        // mode + size + predicted bits (+ jump table and padding), no capacity checks while writing
+        startWriting(1 + 10 + (predict[predictMin] + 7) / 8 + 1 + (multiStream ? 3*5 + 4 : 0));
         if (predictMin==PREDICT_UNCOMPRESSED) {
             writeBits(MODE_UNCOMPRESSED, 8);
             writeSize(inSize);
-            for (int i=0; i<inSize; i++) {
-                writeBits(a[i] & 0xff, 8);
-            }
+            writer.writeBytes(a, off, inSize);
+        }
+        else if (predictMin==PREDICT_PREVIOUS_TABLE) {
+            writeBits(multiStream ? MODE_PREVIOUS_TABLE_4 : MODE_PREVIOUS_TABLE, 8);
+            writeSize(inSize);
+            compressStreams(a, off, inLen, multiStream);
         }
         else if (predictMin==PREDICT_PARTIAL_TABLE) {
-            writeBits(MODE_COMPRESSED, 8);
+            writeBits(multiStream ? MODE_COMPRESSED_4 : MODE_COMPRESSED, 8);
             writeBits(UNQ-1, 8);
             writeSize(inSize);
             if (UNQ!=256) {
-                byte T[] = getTable(partialTableLength);
-                for (int i = 0; i < partialTableLength; i++) {
-                    writeBits(T[i], 8);
-                }
+                writeTable();
             }
             writeBits(maxCodeLen-1, 8);
             writeBits(minCodeLen-1, 3);
@@ -402,8 +509,15 @@ public class Huffman {
                     }
                 }
             }
-            compressInput(a, inLen);
+            compressStreams(a, off, inLen, multiStream);
+            hasLastTable = true;
+            System.arraycopy(codes, 0, lastCodes, 0, 256);
+            System.arraycopy(codeLen, 0, lastCodeLen, 0, 256);
+            lastMinCodeLen = minCodeLen;
+            lastMaxCodeLen = maxCodeLen;
         }
+        writer.flush();
+        encodedSize = writer.position() - (encodeDst!=null ? encodeDstOff : 0);
 //        System.out.println("Insize: "+inSize);
 //        System.out.println("# of unique byte values: "+ UNQ);
 //        System.out.println("Outsize: "+ encodedSize +" ("+((float) encodedSize /inSize)+")");
@@ -413,8 +527,209 @@ public class Huffman {
     }
 
     public void decode() throws CompressionException {
-        encodedSize = 0;
-        encodedMask = 0;
+        decode(encodedBuf, 0, encodedSize);
+    }
+
+    /**
+     * Worst case encoded size for len input bytes.
+     */
+    public static int maxEncodedLength(int len) {
+        if (len<0 || len>MAX_INPUT) {
+            throw new IllegalArgumentException("Huffman: length not in 0.." + MAX_INPUT);
+        }
+        // mode + size + data, a compressed block is at most its jump table larger
+        return len + 32;
+    }
+
+    /**
+     * Encodes src[off..off+len) into dst at dstOff and returns the number of bytes written. At
+     * least maxEncodedLength(len) bytes must be available in dst. Thread safe, the tables are
+     * kept in a scratch instance per thread and the codes are written directly into dst, so
+     * nothing is allocated per call.
+     */
+    public static int encode(byte src[], int off, int len, byte dst[], int dstOff) throws CompressionException {
+        if (dst.length-dstOff < maxEncodedLength(len)) {
+            throw new IllegalArgumentException("Huffman: destination smaller than maxEncodedLength(" + len + ")");
+        }
+        Huffman h = SCRATCH.get();
+        h.encodeDst = dst;
+        h.encodeDstOff = dstOff;
+        try {
+            h.encode(src, off, len, false);
+        }
+        finally {
+            h.encodeDst = null;
+            h.writer.reset(null, 0);
+        }
+        if (h.encodedSize==0) {
+            // empty input still gets a header, so decodedLength() works
+            dst[dstOff] = MODE_UNCOMPRESSED;
+            dst[dstOff+1] = 0;
+            return 2;
+        }
+        return h.encodedSize;
+    }
+
+    /**
+     * Decodes the Huffman data in src[off..off+len) into dst at dstOff and returns the number of
+     * bytes written, see decodedLength(). Thread safe like encode(byte[], int, int, byte[], int).
+     */
+    public static int decode(byte src[], int off, int len, byte dst[], int dstOff) throws CompressionException {
+        Huffman h = SCRATCH.get();
+        h.hasDecodeTable = false; // a table of another caller is no previous table
+        try {
+            h.decodeBlock(src, off, len, dst, dstOff);
+        }
+        finally {
+            h.out = null;
+            h.reader.reset(null, 0, 0);
+        }
+        return h.decodedSize;
+    }
+
+    /**
+     * Encodes src[off..off+len) with the static table into dst at dstOff and returns the number
+     * of bytes written. Only the table id is written in front of the codes, there is no tree
+     * to build or code length table to write. When the codes are not smaller than the input
+     * (or a byte value has no code) the input is stored. At least maxEncodedLength(len) bytes
+     * must be available in dst.
+     */
+    public static int encodeWithTable(HuffmanTable t, byte src[], int off, int len, byte dst[], int dstOff) {
+        if (dst.length-dstOff < maxEncodedLength(len)) {
+            throw new IllegalArgumentException("Huffman: destination smaller than maxEncodedLength(" + len + ")");
+        }
+        long bits = 0;
+        int codeLen[] = t.codeLen;
+        for (int i=off, end=off+len; i<end; i++) {
+            int L = codeLen[src[i] & 0xff];
+            if (L==0) {
+                bits = Long.MAX_VALUE;
+                break;
+            }
+            bits += L;
+        }
+        BitWriter w = SCRATCH.get().writer;
+        w.reset(dst, dstOff);
+        if (bits>=8L*len) {
+            w.writeBits(MODE_UNCOMPRESSED, 8);
+            w.writeSize(len);
+            w.writeBytes(src, off, len);
+        }
+        else {
+            w.writeBits(MODE_STATIC_TABLE, 8);
+            w.writeSize(t.getId());
+            w.writeSize(len);
+            w.writeCodes(src, off, len, t.codes, codeLen);
+        }
+        w.flush();
+        int n = w.position() - dstOff;
+        w.reset(null, 0); // do not keep the caller's array
+        return n;
+    }
+
+    /**
+     * Decodes data written by encodeWithTable() with the same table into dst at dstOff and
+     * returns the number of bytes written, see decodedLength().
+     */
+    public static int decodeWithTable(HuffmanTable t, byte src[], int off, int len, byte dst[], int dstOff) throws CompressionException {
+        BitReader in = SCRATCH.get().reader;
+        try {
+            return decodeWithTable(in, t, src, off, len, dst, dstOff);
+        }
+        finally {
+            in.reset(null, 0, 0);
+        }
+    }
+
+    private static int decodeWithTable(BitReader in, HuffmanTable t, byte src[], int off, int len, byte dst[], int dstOff) throws CompressionException {
+        in.reset(src, off, off+len);
+        int mode = (int)in.readBits(8);
+        if (mode!=MODE_UNCOMPRESSED && mode!=MODE_STATIC_TABLE) {
+            throw new CompressionException("Huffman: not encoded with a static table, mode " + mode);
+        }
+        if (mode==MODE_STATIC_TABLE) {
+            int id = (int)in.readSize();
+            if (id!=t.getId()) {
+                throw new CompressionException("Huffman: encoded with table " + id + ", not with table " + t.getId());
+            }
+        }
+        int size = (int)in.readSize();
+        if (size<0 || size>(mode==MODE_UNCOMPRESSED ? len : 8L*len)) {
+            throw new CompressionException("Huffman: corrupt size " + size);
+        }
+        if (dst.length-dstOff < size) {
+            throw new IllegalArgumentException("Huffman: destination too small, " + size + " bytes needed");
+        }
+        if (mode==MODE_UNCOMPRESSED) {
+            in.readBytes(dst, dstOff, size);
+        }
+        else if (in.decode(t.table, t.tableBits, dst, dstOff, dstOff+size)!=dstOff+size) {
+            throw new CompressionException("Huffman: invalid code");
+        }
+        if (in.position()>off+len) {
+            throw new CompressionException("Huffman: input truncated");
+        }
+        return size;
+    }
+
+    /**
+     * Returns the decoded length stored in the header of the Huffman data at src[off].
+     */
+    public static int decodedLength(byte src[], int off) throws CompressionException {
+        int mode = src[off] & 0xff;
+        if (mode>MODE_STATIC_TABLE) {
+            throw new CompressionException("Huffman: unknown mode " + mode);
+        }
+        int p = off + (mode==MODE_COMPRESSED || mode==MODE_COMPRESSED_4 ? 2 : 1);
+        if (mode==MODE_STATIC_TABLE) {
+            while ((src[p++] & 0x80)!=0); // table id
+        }
+        int shift = 0;
+        int L = 0;
+        int i = src[p++] & 0xff;
+        while ((i & 0x80)!=0) {
+            L |= (i & 0x7f) << shift;
+            shift += 7;
+            i = src[p++] & 0xff;
+        }
+        return L | (i << shift);
+    }
+
+    /**
+     * Decodes the data in src[off..off+len) into the decoded buffer. Blocks of a
+     * HuffmanOutputStream that reuse the previous table need the previous block decoded first.
+     */
+    public void decode(byte src[], int off, int len) throws CompressionException {
+        decodeBlock(src, off, len, null, 0);
+    }
+
+    /**
+     * Makes out[outOff..outOff+size) the destination of the decoded bytes: dst at dstOff, or
+     * decodedBuf if dst is null. A size above maxSize cannot be in the input.
+     */
+    private void startDecoding(long size, long maxSize, byte dst[], int dstOff) throws CompressionException {
+        if (size<0 || size>maxSize || size>Integer.MAX_VALUE) {
+            throw new CompressionException("Huffman: corrupt size " + size);
+        }
+        decodedSize = (int)size;
+        if (dst!=null) {
+            if (dst.length-dstOff < size) {
+                throw new IllegalArgumentException("Huffman: destination too small, " + size + " bytes needed");
+            }
+            out = dst;
+            outOff = dstOff;
+        }
+        else {
+            if (size>decodedBuf.length) {
+                decodedBuf = new byte[(int)size];
+            }
+            out = decodedBuf;
+            outOff = 0;
+        }
+    }
+
+    private void decodeBlock(byte src[], int off, int len, byte dst[], int dstOff) throws CompressionException {
+        reader.reset(src, off, off+len);
         long tmp = readBits(8);
         int version = (int)(tmp & 0b11111000);
         if (version!=0) {
@@ -422,35 +737,17 @@ public class Huffman {
         }
         int mode = (int)(tmp & 0b1111);
         if (mode==MODE_UNCOMPRESSED) {
-            long size = readSize();
-            decodedSize=(int)size;
-            if (size>decodedBuf.length) {
-                decodedBuf =new byte[(int)size];
-            }
-            for (int i=0; i<size; i++) {
-                decodedBuf[i] = (byte)readBits(8);
-            }
+            startDecoding(readSize(), len, dst, dstOff);
+            reader.readBytes(out, outOff, decodedSize);
             return;
         }
         else if (mode==MODE_UNQ_EQ_1) {
-            long size = readSize();
-            decodedSize=(int)size;
-            if (size>decodedBuf.length) {
-                decodedBuf =new byte[(int)size];
-            }
-            byte ch = (byte)readBits(8);
-            for (int i=0; i<size; i++) {
-                decodedBuf[i] = ch;
-            }
-            return;
+            startDecoding(readSize(), Integer.MAX_VALUE, dst, dstOff);
+            Arrays.fill(out, outOff, outOff+decodedSize, (byte)readBits(8));
         }
-        else {
+        else if (mode==MODE_COMPRESSED || mode==MODE_COMPRESSED_4) {
             UNQ = (int)readBits(8) + 1;
-            long size = readSize();
-            decodedSize=(int)size;
-            if (size>decodedBuf.length) {
-                decodedBuf =new byte[(int)size];
-            }
+            startDecoding(readSize(), 8L*len, dst, dstOff); // codes have at least 1 bit
             if (UNQ==256) {
                 maxCodeLen = (int) readBits(8) + 1;
                 minCodeLen = (int) readBits(3) + 1;
@@ -480,6 +777,9 @@ public class Huffman {
                         c++;
                     }
                     a = b;
+                    if (c+1>UNQ) {
+                        throw new CompressionException("Huffman: corrupt table");
+                    }
                     if (c+1==UNQ) {
                         freq[a]++;
                         break;
@@ -500,22 +800,184 @@ public class Huffman {
             }
             assignCanonicalCodes();
             //listCodes();
-            for (int i=0; i<size; i++) {
-                long code = readBits(minCodeLen);
-                int cl = minCodeLen;
-                outer:
-                while (true) {
-                    for (int n = 0; n < 0x100; n++) {
-                        if (codes[n] == code && codeLen[n] == cl) {
-                            decodedBuf[i] = (byte) n;
-                            break outer;
-                        }
+            buildDecodeTable();
+            hasDecodeTable = true;
+            if (mode==MODE_COMPRESSED_4) {
+                decodeStreams(src, off+len);
+            }
+            else {
+                decodeSymbols(outOff, outOff+decodedSize);
+            }
+        }
+        else if (mode==MODE_PREVIOUS_TABLE || mode==MODE_PREVIOUS_TABLE_4) {
+            if (!hasDecodeTable) {
+                throw new CompressionException("Huffman: no previous table");
+            }
+            startDecoding(readSize(), 8L*len, dst, dstOff); // codes have at least 1 bit
+            if (mode==MODE_PREVIOUS_TABLE_4) {
+                decodeStreams(src, off+len);
+            }
+            else {
+                decodeSymbols(outOff, outOff+decodedSize);
+            }
+        }
+        else if (mode==MODE_STATIC_TABLE) {
+            throw new CompressionException("Huffman: encoded with a static table, see decodeWithTable()");
+        }
+        else {
+            throw new CompressionException("Huffman: unknown mode " + mode);
+        }
+        // reads past the end give zero bits
+        if (reader.position()>off+len) {
+            throw new CompressionException("Huffman: input truncated");
+        }
+    }
+
+    /**
+     * Decodes the 4 streams of MODE_COMPRESSED_4. While every stream has 8 bytes ahead, the
+     * streams are advanced together, a few codes per refill each, so the 4 dependency chains
+     * can execute in parallel. The rest of each stream is decoded by decodeSymbols().
+     */
+    private void decodeStreams(byte in[], int limit) throws CompressionException {
+        int len1 = (int)readSize();
+        int len2 = (int)readSize();
+        int len3 = (int)readSize();
+        int p0 = reader.position();
+        int s1 = p0 + len1; // stream starts
+        int s2 = s1 + len2;
+        int s3 = s2 + len3;
+        if (len1<0 || len2<0 || len3<0 || s3>limit || s3<0) {
+            throw new CompressionException("Huffman: corrupt stream lengths");
+        }
+        int p1 = s1;
+        int p2 = s2;
+        int p3 = s3;
+        int size = outOff + decodedSize;
+        int seg = (decodedSize+3) / 4;
+        int end0 = outOff + Math.min(decodedSize, seg);
+        int end1 = outOff + Math.min(decodedSize, 2*seg);
+        int end2 = outOff + Math.min(decodedSize, 3*seg);
+        int o0 = outOff;
+        int o1 = end0;
+        int o2 = end1;
+        int o3 = end2;
+        int b0 = 0; // bits consumed of the long at p0
+        int b1 = 0;
+        int b2 = 0;
+        int b3 = 0;
+        byte out[] = this.out;
+        if (maxCodeLen<=TABLE_LOG) {
+            int tableBits = maxCodeLen;
+            int perRefill = 57 / tableBits;
+            int shift = 64 - tableBits;
+            int t[] = table;
+            while (o3+perRefill<=size && p0+8<=limit && p1+8<=limit && p2+8<=limit && p3+8<=limit) {
+                long a0 = getLong(in, p0) << b0;
+                long a1 = getLong(in, p1) << b1;
+                long a2 = getLong(in, p2) << b2;
+                long a3 = getLong(in, p3) << b3;
+                for (int i=0; i<perRefill; i++) {
+                    int e0 = t[(int)(a0 >>> shift)];
+                    int e1 = t[(int)(a1 >>> shift)];
+                    int e2 = t[(int)(a2 >>> shift)];
+                    int e3 = t[(int)(a3 >>> shift)];
+                    out[o0++] = (byte)(e0 >>> 8);
+                    out[o1++] = (byte)(e1 >>> 8);
+                    out[o2++] = (byte)(e2 >>> 8);
+                    out[o3++] = (byte)(e3 >>> 8);
+                    a0 <<= e0 & 0xff;
+                    a1 <<= e1 & 0xff;
+                    a2 <<= e2 & 0xff;
+                    a3 <<= e3 & 0xff;
+                    b0 += e0 & 0xff;
+                    b1 += e1 & 0xff;
+                    b2 += e2 & 0xff;
+                    b3 += e3 & 0xff;
+                }
+                p0 += b0 >>> 3;
+                p1 += b1 >>> 3;
+                p2 += b2 >>> 3;
+                p3 += b3 >>> 3;
+                b0 &= 7;
+                b1 &= 7;
+                b2 &= 7;
+                b3 &= 7;
+            }
+        }
+        decodeStream(in, p0, b0, s1, o0, end0);
+        decodeStream(in, p1, b1, s2, o1, end1);
+        decodeStream(in, p2, b2, s3, o2, end2);
+        decodeStream(in, p3, b3, limit, o3, size);
+    }
+
+    private void decodeStream(byte in[], int pIn, int bitsUsed, int end, int from, int to) throws CompressionException {
+        reader.reset(in, pIn, end);
+        reader.refill();
+        reader.skipBits(bitsUsed);
+        decodeSymbols(from, to);
+        if (reader.position()>end) {
+            throw new CompressionException("Huffman: input truncated");
+        }
+    }
+
+    private static long getLong(byte b[], int p) {
+        return ((long)b[p] << 56) | ((long)(b[p+1] & 0xff) << 48) | ((long)(b[p+2] & 0xff) << 40) | ((long)(b[p+3] & 0xff) << 32)
+                | ((long)(b[p+4] & 0xff) << 24) | ((b[p+5] & 0xff) << 16) | ((b[p+6] & 0xff) << 8) | (b[p+7] & 0xff);
+    }
+
+    private void buildDecodeTable() {
+        Arrays.fill(lenCount, 0);
+        for (int n=0; n<0x100; n++) {
+            lenCount[codeLen[n]]++;
+        }
+        lenCount[0] = 0;
+        long code = 0;
+        int idx = 0;
+        for (int L=1; L<=maxCodeLen; L++) {
+            firstCode[L] = code;
+            lenIndex[L] = idx;
+            idx += lenCount[L];
+            code = (code + lenCount[L]) << 1;
+        }
+        int tableBits = Math.min(maxCodeLen, TABLE_LOG);
+        Arrays.fill(table, 0, 1 << tableBits, 0);
+        System.arraycopy(lenIndex, 0, next, 0, maxCodeLen+1);
+        for (int L=minCodeLen; L<=maxCodeLen; L++) {
+            for (int n=0; n<0x100; n++) {
+                if (codeLen[n]==L) {
+                    symbols[next[L]++] = n;
+                    if (L<=tableBits) {
+                        int from = (int)codes[n] << (tableBits-L);
+                        Arrays.fill(table, from, from + (1 << (tableBits-L)), (n << 8) | L);
                     }
-                    code <<= 1;
-                    code |= readBits(1);
-                    cl++;
                 }
             }
         }
     }
+
+    /**
+     * Decodes the symbols of out[from..to) starting at the current position of the reader.
+     */
+    private void decodeSymbols(int from, int to) throws CompressionException {
+        int tableBits = Math.min(maxCodeLen, TABLE_LOG);
+        BitReader in = reader;
+        byte out[] = this.out;
+        for (int i=from; i<to; i++) {
+            i = in.decode(table, tableBits, out, i, to);
+            if (i==to) {
+                break;
+            }
+            // longer than tableBits
+            long code = in.readBits(tableBits);
+            int L = tableBits;
+            do {
+                if (L==maxCodeLen) {
+                    throw new CompressionException("Huffman: invalid code");
+                }
+                code = (code << 1) | in.readBits(1);
+                L++;
+            } while (code-firstCode[L]>=lenCount[L]);
+            out[i] = (byte)symbols[lenIndex[L] + (int)(code-firstCode[L])];
+        }
+    }
 }
@@ -0,0 +1,100 @@
+package nl.v4you.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the Huffman blocks written by HuffmanOutputStream.
+ */
+public class HuffmanInputStream extends InputStream {
+    private final InputStream in;
+    private final Huffman huffman = new Huffman();
+    private final int blockSize;
+    private final byte encoded[];
+    private byte block[];
+    private int pos = 0;
+    private int lim = 0;
+    private boolean eof = false;
+
+    public HuffmanInputStream(InputStream in) throws IOException {
+        this.in = in;
+        blockSize = readHeader(in);
+        encoded = new byte[Huffman.maxEncodedLength(blockSize)];
+    }
+
+    /**
+     * Reads the header written by HuffmanOutputStream, returns the block size.
+     */
+    static int readHeader(InputStream in) throws IOException {
+        for (int i=0; i<HuffmanOutputStream.MAGIC.length; i++) {
+            if (StreamIO.readByte(in)!=HuffmanOutputStream.MAGIC[i]) {
+                throw new IOException("Huffman: not a Huffman stream");
+            }
+        }
+        int blockSize = StreamIO.readVarInt(in);
+        if (blockSize<HuffmanOutputStream.BLOCK_SIZE_MIN || blockSize>HuffmanOutputStream.BLOCK_SIZE_MAX) {
+            throw new IOException("Huffman: invalid block size " + blockSize);
+        }
+        return blockSize;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos==lim && !nextBlock()) {
+            return -1;
+        }
+        return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len==0) {
+            return 0;
+        }
+        if (pos==lim && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, lim-pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return lim - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int len = StreamIO.readVarInt(in);
+        if (len==0) {
+            eof = true;
+            return false;
+        }
+        if (len>encoded.length) {
+            throw new IOException("Huffman: corrupt block header");
+        }
+        StreamIO.readFully(in, encoded, 0, len);
+        try {
+            huffman.decode(encoded, 0, len);
+        }
+        catch (CompressionException | RuntimeException e) {
+            throw new IOException("Huffman: corrupt block", e);
+        }
+        if (huffman.getDecodedSize()>blockSize) {
+            throw new IOException("Huffman: corrupt block");
+        }
+        block = huffman.getDecodedBuf();
+        pos = 0;
+        lim = huffman.getDecodedSize();
+        return true;
+    }
+}
@@ -0,0 +1,130 @@
+package nl.v4you.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+// <magic "HUFS"> <block_size>
+// <encoded_length> <Huffman block> ...
+// <0>
+
+/**
+ * Writes Huffman blocks, each with its own table so mixed content (markup followed by
+ * base64 or text in another language) gets a table per part. A block reuses the table of
+ * the previous block when a new table would not make it smaller. Read the blocks back with
+ * HuffmanInputStream.
+ */
+public class HuffmanOutputStream extends OutputStream {
+    static final byte MAGIC[] = { 'H', 'U', 'F', 'S' };
+    public static final int BLOCK_SIZE_DEFAULT = 1 << 17;
+    static final int BLOCK_SIZE_MIN = 1 << 10;
+    static final int BLOCK_SIZE_MAX = 1 << 24;
+
+    private final OutputStream out;
+    private final Huffman huffman = new Huffman();
+    private final byte buf[];
+    private final byte lenBuf[] = new byte[5];
+    private int pos = 0;
+    private boolean first = true;
+    private boolean finished = false;
+
+    public HuffmanOutputStream(OutputStream out) throws IOException {
+        this(out, BLOCK_SIZE_DEFAULT);
+    }
+
+    public HuffmanOutputStream(OutputStream out, int blockSize) throws IOException {
+        checkBlockSize(blockSize);
+        this.out = out;
+        buf = new byte[blockSize];
+        writeHeader(out, blockSize);
+    }
+
+    static void checkBlockSize(int blockSize) {
+        if (blockSize<BLOCK_SIZE_MIN || blockSize>BLOCK_SIZE_MAX) {
+            throw new IllegalArgumentException("blockSize must be between " + BLOCK_SIZE_MIN + " and " + BLOCK_SIZE_MAX);
+        }
+    }
+
+    static void writeHeader(OutputStream os, int blockSize) throws IOException {
+        byte b[] = new byte[MAGIC.length + 5];
+        System.arraycopy(MAGIC, 0, b, 0, MAGIC.length);
+        os.write(b, 0, StreamIO.writeVarInt(blockSize, b, MAGIC.length));
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buf[pos++] = (byte)b;
+        if (pos==buf.length) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        ensureOpen();
+        while (len>0) {
+            int n = Math.min(len, buf.length-pos);
+            System.arraycopy(b, off, buf, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+            if (pos==buf.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Encodes the buffered bytes as a (short) block and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data and the end marker without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBlock();
+        out.write(0);
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("Huffman: stream finished");
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (pos==0) {
+            return;
+        }
+        try {
+            huffman.encode(buf, 0, pos, !first);
+        }
+        catch (CompressionException e) {
+            throw new IOException(e);
+        }
+        out.write(lenBuf, 0, StreamIO.writeVarInt(huffman.getEncodedSize(), lenBuf, 0));
+        out.write(huffman.getEncodedBuf(), 0, huffman.getEncodedSize());
+        first = false;
+        pos = 0;
+    }
+}
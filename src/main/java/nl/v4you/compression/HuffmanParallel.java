@@ -0,0 +1,166 @@
+package nl.v4you.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+
+/**
+ * Block-parallel Huffman coding. Every block is counted, gets its own table and is encoded
+ * by its own task, the blocks are written in order in the format of HuffmanOutputStream, so
+ * HuffmanInputStream can read the result as well. The length in front of every block gives
+ * its offset, so blocks that do not reuse the table of the previous block are decoded in
+ * parallel too.
+ */
+public class HuffmanParallel {
+    private final BlockParallel parallel;
+    private final int blockSize;
+
+    public HuffmanParallel() {
+        this(BlockParallel.POOL, HuffmanOutputStream.BLOCK_SIZE_DEFAULT);
+    }
+
+    public HuffmanParallel(Executor executor, int blockSize) {
+        HuffmanOutputStream.checkBlockSize(blockSize);
+        this.parallel = new BlockParallel(executor, "Huffman");
+        this.blockSize = blockSize;
+    }
+
+    public byte[] encode(byte src[]) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(src.length / 2);
+        try {
+            encode(src, bos);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+        }
+        return bos.toByteArray();
+    }
+
+    public void encode(byte src[], OutputStream os) throws IOException {
+        HuffmanOutputStream.writeHeader(os, blockSize);
+        BlockParallel.OrderedWriter writer = parallel.writer(os);
+        for (int off=0; off<src.length; off+=blockSize) {
+            writer.add(new Encoder(src, off, Math.min(blockSize, src.length-off)));
+        }
+        writer.finish();
+        os.write(0);
+    }
+
+    public byte[] decode(byte frame[]) throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(frame);
+        int frameBlockSize = HuffmanInputStream.readHeader(is);
+        List<Decoder> blocks = new ArrayList<>();
+        long total = 0;
+        while (true) {
+            int len = StreamIO.readVarInt(is);
+            if (len==0) {
+                break;
+            }
+            int off = frame.length - is.available();
+            if (len>is.available()) {
+                throw new IOException("Huffman: corrupt block header");
+            }
+            int mode = frame[off] & 0xf;
+            if (mode==Huffman.MODE_PREVIOUS_TABLE || mode==Huffman.MODE_PREVIOUS_TABLE_4) {
+                return decodeSequential(frame);
+            }
+            int outLen;
+            try {
+                outLen = Huffman.decodedLength(frame, off);
+            }
+            catch (CompressionException | RuntimeException e) {
+                throw new IOException("Huffman: corrupt block header", e);
+            }
+            if (outLen<0 || outLen>frameBlockSize) {
+                throw new IOException("Huffman: corrupt block header");
+            }
+            is.skip(len);
+            blocks.add(new Decoder(frame, off, len, (int)total, outLen));
+            total += outLen;
+            if (total>Integer.MAX_VALUE) {
+                throw new IOException("Huffman: stream too large for a byte array");
+            }
+        }
+        byte out[] = new byte[(int)total];
+        for (Decoder d : blocks) {
+            d.out = out;
+        }
+        parallel.runAll(blocks);
+        return out;
+    }
+
+    private byte[] decodeSequential(byte frame[]) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HuffmanInputStream is = new HuffmanInputStream(new ByteArrayInputStream(frame));
+        byte buf[] = new byte[blockSize];
+        int n;
+        while ((n=is.read(buf, 0, buf.length))>=0) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    private static class Encoder implements Callable<byte[]> {
+        private final byte src[];
+        private final int off;
+        private final int len;
+
+        Encoder(byte src[], int off, int len) {
+            this.src = src;
+            this.off = off;
+            this.len = len;
+        }
+
+        /**
+         * Returns the complete block: length and encoded data.
+         */
+        @Override
+        public byte[] call() throws CompressionException {
+            // the codes go behind room for the longest varint, the length is put right in front of them
+            byte out[] = new byte[5 + Huffman.maxEncodedLength(len)];
+            int n = Huffman.encode(src, off, len, out, 5);
+            byte header[] = new byte[5];
+            int h = StreamIO.writeVarInt(n, header, 0);
+            System.arraycopy(header, 0, out, 5-h, h);
+            return Arrays.copyOfRange(out, 5-h, 5+n);
+        }
+    }
+
+    private static class Decoder implements Callable<byte[]> {
+        private final byte in[];
+        private final int inOff;
+        private final int inLen;
+        private final int outOff;
+        private final int outLen;
+        byte out[];
+
+        Decoder(byte in[], int inOff, int inLen, int outOff, int outLen) {
+            this.in = in;
+            this.inOff = inOff;
+            this.inLen = inLen;
+            this.outOff = outOff;
+            this.outLen = outLen;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            int n;
+            try {
+                n = Huffman.decode(in, inOff, inLen, out, outOff);
+            }
+            catch (CompressionException | RuntimeException e) {
+                throw new IOException("Huffman: corrupt block", e);
+            }
+            if (n!=outLen) {
+                throw new IOException("Huffman: corrupt block");
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package nl.v4you.compression;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Static canonical Huffman table for Huffman.encodeWithTable() and decodeWithTable(). Small
+ * records are written without a code length table, only the table id goes in front of the
+ * codes. Instances are immutable and can be used from several threads.
+ */
+public class HuffmanTable {
+    // trained counts are scaled to at least this total, so unseen byte values (count 1) get the longest codes
+    private static final int TRAIN_SCALE = 1 << 20;
+
+    private final int id;
+    final int codeLen[] = new int[256]; // 0 for a byte value without code
+    final long codes[] = new long[256];
+    final int table[]; // (symbol << 8) | length, indexed by the next tableBits bits
+    final int tableBits;
+
+    /**
+     * Creates the table with the given code length (0..11, 0 for no code) per byte value. The
+     * codes are assigned in canonical order, by length and then by byte value.
+     */
+    public HuffmanTable(int id, byte codeLengths[]) {
+        if (id<0) {
+            throw new IllegalArgumentException("id must be >= 0");
+        }
+        if (codeLengths.length!=256) {
+            throw new IllegalArgumentException("256 code lengths expected");
+        }
+        this.id = id;
+        int maxLen = 1;
+        long kraft = 0;
+        for (int i=0; i<256; i++) {
+            int L = codeLengths[i];
+            if (L<0 || L>Huffman.MAX_CODE_LEN) {
+                throw new IllegalArgumentException("code length of " + i + " not in 0.." + Huffman.MAX_CODE_LEN);
+            }
+            if (L>0) {
+                codeLen[i] = L;
+                kraft += 1L << (Huffman.MAX_CODE_LEN-L);
+                maxLen = Math.max(maxLen, L);
+            }
+        }
+        if (kraft>1 << Huffman.MAX_CODE_LEN) {
+            throw new IllegalArgumentException("code lengths do not form a prefix code");
+        }
+        long code = 0;
+        for (int L=1; L<=maxLen; L++) {
+            for (int i=0; i<256; i++) {
+                if (codeLen[i]==L) {
+                    codes[i] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        tableBits = maxLen;
+        table = new int[1 << tableBits];
+        for (int i=0; i<256; i++) {
+            int L = codeLen[i];
+            if (L>0) {
+                int from = (int)codes[i] << (tableBits-L);
+                Arrays.fill(table, from, from + (1 << (tableBits-L)), (i << 8) | L);
+            }
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte[] getCodeLengths() {
+        byte b[] = new byte[256];
+        for (int i=0; i<256; i++) {
+            b[i] = (byte)codeLen[i];
+        }
+        return b;
+    }
+
+    /**
+     * Returns the serialized table: the id as varint followed by 256 code lengths of 4 bits.
+     */
+    public byte[] toByteArray() {
+        byte b[] = new byte[5 + 128];
+        int p = StreamIO.writeVarInt(id, b, 0);
+        for (int i=0; i<256; i+=2) {
+            b[p++] = (byte)((codeLen[i] << 4) | codeLen[i+1]);
+        }
+        return Arrays.copyOf(b, p);
+    }
+
+    /**
+     * Reads a table written by toByteArray().
+     */
+    public static HuffmanTable fromByteArray(byte b[]) {
+        int id = 0;
+        int p = 0;
+        for (int shift=0; ; shift+=7) {
+            if (p==b.length || shift>28) {
+                throw new IllegalArgumentException("Huffman: corrupt table");
+            }
+            id |= (b[p] & 0x7f) << shift;
+            if ((b[p++] & 0x80)==0) {
+                break;
+            }
+        }
+        if (b.length-p!=128) {
+            throw new IllegalArgumentException("Huffman: corrupt table");
+        }
+        byte codeLengths[] = new byte[256];
+        for (int i=0; i<256; i+=2) {
+            codeLengths[i] = (byte)((b[p] >>> 4) & 0xf);
+            codeLengths[i+1] = (byte)(b[p++] & 0xf);
+        }
+        return new HuffmanTable(id, codeLengths);
+    }
+
+    /**
+     * Builds the table from sample records. Every byte value gets a code, values that do not
+     * occur in the samples get the longest codes, so any record can be encoded.
+     */
+    public static HuffmanTable train(int id, List<byte[]> samples) {
+        long count[] = new long[256];
+        long total = 0;
+        for (byte s[] : samples) {
+            for (byte b : s) {
+                count[b & 0xff]++;
+            }
+            total += s.length;
+        }
+        long scale = Math.max(1, TRAIN_SCALE / Math.max(1, total));
+        int f[] = new int[256];
+        for (int i=0; i<256; i++) {
+            f[i] = (int)Math.min(count[i] * scale, 1 << 30) + 1;
+        }
+        int lengths[] = Huffman.codeLengths(f);
+        byte codeLengths[] = new byte[256];
+        for (int i=0; i<256; i++) {
+            codeLengths[i] = (byte)lengths[i];
+        }
+        return new HuffmanTable(id, codeLengths);
+    }
+}
@@ -1,130 +1,249 @@
 package nl.v4you.compression;
 
 import java.io.*;
-import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
 /**
- * LZV compression using only ascii chars in compressed bytes
+ * LZV compression using only ascii chars in compressed bytes. An instance keeps its match
+ * finder tables and output buffer between calls, so compressInto() and decompressInto()
+ * allocate nothing. Instances are not thread safe, keep one per thread.
+ * <p>
+ * In xml safe mode lengths and offsets use an alphabet without the characters that XML
+ * escapes ({@code " & ' < >}) and literals outside printable ascii are written as an
+ * escape character and two alphabet characters, so the compressed text can be used as
+ * attribute or element value as is. The decompressor recognizes both modes by their magic.
  */
 public class LZ7 {
     private static final int MATCH_LEN_MIN = 3;
     private static final int WIN_MAX = 0b1111111111; // offset 2 x 5 bits
 
-    private int SPACE = 32;
+    // match finder: most recent position per byte and per byte pair, plus a hash chain
+    // for 3 byte prefixes. Together they give the same matches as a backward scan of the
+    // window, so the output is identical to the original linear search.
+    private static final int HASH_LOG_MIN = 8;
+    private static final int HASH_LOG_MAX = 12; // head[] is sized to the input, small inputs clear less
+    private static final int CHAIN_MASK = 0b1111111111; // ring buffer covering WIN_MAX
+
+    private static final byte MAGIC[] = { 'L', 'Z', '7', '1' }; // magic and version
+    private static final byte VERSION_XML_SAFE = 'X'; // replaces the version for the xml safe alphabet
+
+    // value (0..63) to character and character to value (-1 if not in the alphabet)
+    private static final byte ASCII[] = new byte[0x40];
+    private static final byte XML_SAFE[] = new byte[0x40];
+    private static final int ASCII_VALUES[] = new int[0x100];
+    private static final int XML_SAFE_VALUES[] = new int[0x100];
+    private static final int ESCAPE = '~'; // xml safe literal: escape, value >>> 6, value & 0x3f
+    private static final boolean XML_ESCAPED[] = new boolean[0x100];
+
+    static {
+        String special = "\"&'<>";
+        String replacement = "abcde";
+        Arrays.fill(XML_SAFE_VALUES, -1);
+        for (int v=0; v<0x40; v++) {
+            int c = v + ' ';
+            ASCII[v] = (byte)c;
+            int i = special.indexOf(c);
+            XML_SAFE[v] = (byte)(i<0 ? c : replacement.charAt(i));
+            XML_SAFE_VALUES[XML_SAFE[v]] = v;
+        }
+        for (int c=0; c<0x100; c++) {
+            ASCII_VALUES[c] = (byte)c - ' '; // same as reading the signed byte
+            XML_ESCAPED[c] = c<0x20 || c>=0x7f || c==ESCAPE || special.indexOf(c)>=0;
+        }
+    }
 
-    public byte[] compress(byte strAsBytes[]) {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    private final boolean xmlSafe;
+    private final byte alphabet[];
+
+    private int last1[] = new int[0x100];
+    private int last2[] = new int[0x10000];
+    private int head[] = new int[1 << HASH_LOG_MAX];
+    private int hashShift;
+    private int chain[] = new int[CHAIN_MASK + 1];
+    private int matchPos;
+
+    private byte buf[]; // output of compress(byte[]), reused
+    private char chars[]; // output of compress(byte[], Appendable), reused
+    private byte out[]; // output while compressing into bytes
+    private char outChars[]; // or into chars, one of the two is set
+    private int pOut;
+
+    public LZ7() {
+        this(false);
+    }
+
+    /**
+     * With xmlSafe set the output contains only printable ascii without {@code " & ' < >}.
+     */
+    public LZ7(boolean xmlSafe) {
+        this.xmlSafe = xmlSafe;
+        this.alphabet = xmlSafe ? XML_SAFE : ASCII;
+    }
 
-        bos.write("LZ7".getBytes(StandardCharsets.UTF_8), 0, 3); // magic
-        bos.write('1'); // version
+    public byte[] compress(byte strAsBytes[]) {
+        buf = ensureCapacity(buf, maxCompressedLength(strAsBytes.length, xmlSafe));
+        return Arrays.copyOf(buf, compressInto(strAsBytes, 0, strAsBytes.length, buf, 0));
+    }
 
-        writeIntAsAscii(strAsBytes.length, bos, true);
+    /**
+     * Compresses src[srcOff..srcOff+srcLen) into dst at dstOff and returns the number of bytes
+     * written. At least maxCompressedLength(srcLen, xmlSafe) bytes must be available in dst.
+     * Nothing is allocated, the instance keeps its tables between calls.
+     */
+    public int compressInto(byte src[], int srcOff, int srcLen, byte dst[], int dstOff) {
+        if (dst.length-dstOff < maxCompressedLength(srcLen, xmlSafe)) {
+            throw new IllegalArgumentException("LZ7: destination smaller than maxCompressedLength(" + srcLen + ")");
+        }
+        out = dst;
+        return encode(src, srcOff, srcLen, dstOff);
+    }
 
-        int ptr=0;
+    /**
+     * Compresses into out or outChars at dstOff, returns the number of characters written.
+     */
+    private int encode(byte src[], int srcOff, int srcLen, int dstOff) {
+        pOut = dstOff;
+        put(MAGIC[0]);
+        put(MAGIC[1]);
+        put(MAGIC[2]);
+        put(xmlSafe ? VERSION_XML_SAFE : MAGIC[3]);
+
+        writeIntAsAscii(srcLen, true);
+
+        // last2[] is not cleared, findMatch() validates its entries instead
+        Arrays.fill(last1, -1);
+        int hashLog = HASH_LOG_MIN;
+        while (hashLog < HASH_LOG_MAX && (1 << hashLog) < srcLen) {
+            hashLog++;
+        }
+        hashShift = 32 - hashLog;
+        Arrays.fill(head, 0, 1 << hashLog, -1);
 
+        int end = srcOff + srcLen;
+        int ptr=srcOff;
         int litLen=0;
-        int prefixLen=0;
-
-        int lastIndexOfPrefix=-1;
-        while (ptr<strAsBytes.length) {
-            int lastIndexOf;
-            if (lastIndexOfPrefix!=-1) {
-                if (strAsBytes[ptr]==strAsBytes[lastIndexOfPrefix+prefixLen]) {
-                    lastIndexOf = lastIndexOfPrefix;
-                } else {
-                    int winStart = ptr - WIN_MAX;
-                    if (winStart<0) {
-                        winStart=0;
-                    }
-                    lastIndexOf = byteArrayLastIndexOf(
-                            strAsBytes,
-                            winStart,
-                            (lastIndexOfPrefix + prefixLen + 1) - winStart,
-                            ptr - prefixLen,
-                            prefixLen + 1);
-                }
-            } else {
-                int winStart = ptr - WIN_MAX;
-                if (winStart<0) {
-                    winStart=0;
+        while (ptr<end) {
+            int prefixLen = findMatch(src, srcOff, ptr, end);
+            if (prefixLen>0 && ptr+prefixLen==end) {
+                int prefixLenNormalized = prefixLen - MATCH_LEN_MIN;
+                if (prefixLenNormalized<0) {
+                    prefixLenNormalized=0;
                 }
-                lastIndexOf = byteArrayLastIndexOf(
-                        strAsBytes,
-                        winStart,
-                        ptr-winStart,
-                        ptr - prefixLen,
-                        prefixLen + 1);
+                writeSequence(src, ptr-litLen, litLen, ptr-matchPos, prefixLenNormalized, true);
+                return finish(dstOff);
             }
-            if (lastIndexOf!=-1) {
-                prefixLen++;
-                lastIndexOfPrefix = lastIndexOf;
-            } else {
+            if (prefixLen < MATCH_LEN_MIN) {
                 if (prefixLen==0) {
-                    litLen++;
-                } else if (prefixLen < MATCH_LEN_MIN) {
-                    litLen+=prefixLen;
-                    ptr--; // retry byte we could not find earlier
-                } else {
-                    int back = ptr-prefixLen-lastIndexOfPrefix;
-                    if (writeSequence(strAsBytes, ptr-prefixLen-litLen, litLen, back, prefixLen-MATCH_LEN_MIN, bos, false)) {
-                        litLen = 0;
-                    } else {
-                        litLen += prefixLen;
-                    }
-                    ptr--; // retry byte we could not find earlier
+                    prefixLen=1;
                 }
-                prefixLen=0;
-                lastIndexOfPrefix=-1;
+                litLen+=prefixLen;
+            } else if (writeSequence(src, ptr-litLen, litLen, ptr-matchPos, prefixLen-MATCH_LEN_MIN, false)) {
+                litLen = 0;
+            } else {
+                litLen += prefixLen;
             }
-            ptr++;
-        }
-        if (prefixLen==0) {
-            writeSequence(strAsBytes, ptr-prefixLen-litLen, litLen, 0, 0, bos, true);
-        } else {
-            int back = ptr-prefixLen-lastIndexOfPrefix;
-            int prefixLenNormalized = prefixLen - MATCH_LEN_MIN;
-            if (prefixLenNormalized<0) {
-                prefixLenNormalized=0;
+            for (int e=ptr+prefixLen; ptr<e; ptr++) {
+                insert(src, ptr, end);
             }
-            writeSequence(strAsBytes, ptr-prefixLen-litLen, litLen, back, prefixLenNormalized, bos, true);
         }
-        return bos.toByteArray();
+        writeSequence(src, ptr-litLen, litLen, 0, 0, true);
+        return finish(dstOff);
     }
 
-    public byte[] decompress(byte in[]) throws IllegalStateException {
+    private int finish(int dstOff) {
+        out = null; // do not hold on to the caller's buffer
+        outChars = null;
+        return pOut - dstOff;
+    }
 
-        if (in[0]!='L' || in[1]!='Z' || in[2]!='7' || in[3]!='1') {
-            throw new IllegalStateException("Unknown LZ7 header");
-        }
+    /**
+     * Worst case size of compress() output for len input bytes.
+     */
+    public static int maxCompressedLength(int len) {
+        return maxCompressedLength(len, false);
+    }
+
+    public static int maxCompressedLength(int len, boolean xmlSafe) {
+        // magic + length + literals (escaped: 3 chars each) + one length byte per 63 literals + final sequence
+        return 4 + 7 + (xmlSafe ? 3 : 1) * len + len / 0x3f + 8;
+    }
 
-        int pIn=4;
+    /**
+     * Returns the decompressed length stored in the header of the LZ7 data at src[off].
+     */
+    public static int decompressedLength(byte src[], int off) {
+        int values[] = values(src[off], src[off+1], src[off+2], src[off+3]);
+        int pIn = off + MAGIC.length;
         int flen = 0;
-        {
-            int v = readByteAsAscii(in, pIn++);
-            while ((v & 0x20) != 0) {
-                flen |= (v & 0x1f);
-                flen <<= 5;
-                v = readByteAsAscii(in, pIn++);
-            }
+        int v = values[src[pIn++] & 0xff];
+        while ((v & 0x20) != 0) {
             flen |= (v & 0x1f);
+            flen <<= 5;
+            v = values[src[pIn++] & 0xff];
+        }
+        return flen | (v & 0x1f);
+    }
+
+    /**
+     * Returns the character to value table for the given magic.
+     */
+    private static int[] values(int b0, int b1, int b2, int version) {
+        if (b0!=MAGIC[0] || b1!=MAGIC[1] || b2!=MAGIC[2]) {
+            throw new IllegalStateException("Unknown LZ7 header");
+        }
+        if (version==MAGIC[3]) {
+            return ASCII_VALUES;
+        }
+        if (version==VERSION_XML_SAFE) {
+            return XML_SAFE_VALUES;
+        }
+        throw new IllegalStateException("Unknown LZ7 header");
+    }
+
+    private static byte[] ensureCapacity(byte b[], int len) {
+        return b!=null && b.length>=len ? b : new byte[len];
+    }
+
+    public byte[] decompress(byte in[]) throws IllegalStateException {
+        byte out[] = new byte[decompressedLength(in, 0)];
+        try {
+            decompressInto(in, 0, in.length, out, 0);
+        }
+        catch (CompressionException e) {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
+        return out;
+    }
+
+    /**
+     * Decompresses the LZ7 data in src[srcOff..srcOff+srcLen) into dst at dstOff and returns
+     * the number of bytes written, which equals decompressedLength(src, srcOff). Matches that
+     * reach before dstOff are rejected, so dst[0..dstOff) is never copied into the output.
+     */
+    public int decompressInto(byte in[], int srcOff, int srcLen, byte out[], int dstOff) throws CompressionException {
+        int flen = decompressedLength(in, srcOff);
+        if (out.length-dstOff < flen) {
+            throw new IllegalArgumentException("LZ7: destination too small, " + flen + " bytes needed");
         }
+        int values[] = values(in[srcOff], in[srcOff+1], in[srcOff+2], in[srcOff+3]);
+        boolean escaped = values==XML_SAFE_VALUES;
+        int pIn = srcOff + MAGIC.length;
+        while ((values[in[pIn++] & 0xff] & 0x20) != 0);
 
-        byte out[] = new byte[flen];
         int bytesLeft = flen; // decompressed size
-        int pOut = 0;
+        int pOut = dstOff;
         while (bytesLeft > 0) {
             int litLen = 0;
             int repLen = 0;
 
             // combined
-            int combined = readByteAsAscii(in, pIn++);
+            int combined = values[in[pIn++] & 0xff];
             int litCount = (combined >>> 2) & 0xf;
             int repCount = combined & 3;
             litLen += litCount;
             repLen += repCount;
             while (litCount==0xf && repCount==0x3) {
-                combined = readByteAsAscii(in, pIn++);
+                combined = values[in[pIn++] & 0xff];
                 litCount = (combined >>> 2) & 0xf;
                 repCount = combined & 3;
                 litLen += litCount;
@@ -134,77 +253,261 @@ public class LZ7 {
             // more_literal_length_bytes
             if (litCount==0xf) litCount=0x3f;
             while (litCount==0x3f) {
-                litCount = readByteAsAscii(in, pIn++);
+                litCount = values[in[pIn++] & 0xff];
                 litLen += litCount;
             }
 
             // more_repeat_length_bytes
             if (repCount==0x3) repCount=0x3f;
             while (repCount==0x3f) {
-                repCount = readByteAsAscii(in, pIn++);
+                repCount = values[in[pIn++] & 0xff];
                 repLen += repCount;
             }
 
             // offset
             int offset = 0;
-            int v = readByteAsAscii(in, pIn++);
+            int v = values[in[pIn++] & 0xff];
             while ((v & 0x20) != 0) {
                 offset |= v & 0x1f;
                 offset <<= 5;
-                v = readByteAsAscii(in, pIn++);
+                v = values[in[pIn++] & 0xff];
             }
             offset |= v & 0x1f;
 
             // literals
+            if (litLen<0 || litLen>bytesLeft || repLen<0) {
+                throw new CompressionException("LZ7: invalid length");
+            }
             if (litLen!=0) {
                 bytesLeft -= litLen;
-                System.arraycopy(in, pIn, out, pOut, litLen);
-                pIn += litLen;
-                pOut += litLen;
+                if (escaped) {
+                    for (int end=pOut+litLen; pOut<end; ) {
+                        int c = in[pIn++] & 0xff;
+                        if (c==ESCAPE) {
+                            c = (values[in[pIn] & 0xff] << 6) | values[in[pIn+1] & 0xff];
+                            pIn += 2;
+                        }
+                        out[pOut++] = (byte)c;
+                    }
+                }
+                else {
+                    System.arraycopy(in, pIn, out, pOut, litLen);
+                    pIn += litLen;
+                    pOut += litLen;
+                }
             }
 
             repLen += MATCH_LEN_MIN;
             if (repLen>bytesLeft) {
                 repLen=bytesLeft;
             }
+            if (repLen>0 && (offset<=0 || offset>pOut-dstOff)) {
+                throw new CompressionException("LZ7: invalid offset");
+            }
             bytesLeft -= repLen;
-            while (repLen>0) {
-                int cStart = pOut - offset;
-                int len=repLen;
-                if ((pOut-cStart)<repLen) {
-                    len = pOut-cStart;
-                }
-                System.arraycopy(out, cStart, out, pOut, len);
-                pOut += len;
-                repLen -= len;
+            LZV.copyMatch(out, pOut, offset, repLen);
+            pOut += repLen;
+        }
+        if (pIn > srcOff+srcLen) {
+            throw new CompressionException("LZ7: input truncated");
+        }
+        return flen;
+    }
+
+    /**
+     * Appends the compressed form of src to out as characters, bytes 0x80-0xff in literals
+     * become chars 0x80-0xff (ISO-8859-1).
+     */
+    public void compress(byte src[], Appendable out) throws IOException {
+        compress(src, 0, src.length, out);
+    }
+
+    /**
+     * The characters are encoded directly into a char[] kept by the instance, which is then
+     * appended in one call. The encoder drops sequences it has already written when a
+     * literal is shorter, so it cannot write to the Appendable as it goes.
+     */
+    public void compress(byte src[], int srcOff, int srcLen, Appendable out) throws IOException {
+        int max = maxCompressedLength(srcLen, xmlSafe);
+        if (chars==null || chars.length<max) {
+            chars = new char[max];
+        }
+        outChars = chars;
+        int n = encode(src, srcOff, srcLen, 0);
+        if (out instanceof StringBuilder) {
+            ((StringBuilder)out).append(chars, 0, n);
+        }
+        else if (out instanceof Writer) {
+            ((Writer)out).write(chars, 0, n);
+        }
+        else {
+            for (int i=0; i<n; i++) {
+                out.append(chars[i]);
             }
         }
+    }
+
+    /**
+     * Decompresses the LZ7 characters in[off..off+len), see compress(byte[], Appendable).
+     */
+    public byte[] decompress(CharSequence in, int off, int len) throws CompressionException {
+        byte out[] = new byte[decompressedLength(in, off)];
+        if (decompress(in, off, out, 0) > off+len) {
+            throw new CompressionException("LZ7: input truncated");
+        }
         return out;
     }
 
-    private boolean writeSequence(byte strAsBytes[], int litStart, int litLen, int offset, int repLen, ByteArrayOutputStream bos, boolean forceWrite) {
+    public static int decompressedLength(CharSequence src, int off) throws CompressionException {
+        int values[] = values(src, off);
+        int pIn = off + MAGIC.length;
+        int flen = 0;
+        int v = value(values, src.charAt(pIn++));
+        while ((v & 0x20) != 0) {
+            flen |= (v & 0x1f);
+            flen <<= 5;
+            v = value(values, src.charAt(pIn++));
+        }
+        flen |= v & 0x1f;
+        if (flen<0) {
+            throw new CompressionException("LZ7: invalid length");
+        }
+        return flen;
+    }
+
+    /**
+     * CharSequence version of values(), an unknown magic is corrupt input.
+     */
+    private static int[] values(CharSequence src, int off) throws CompressionException {
+        char version = src.charAt(off+3);
+        if (src.charAt(off)!=MAGIC[0] || src.charAt(off+1)!=MAGIC[1] || src.charAt(off+2)!=MAGIC[2]
+                || (version!=MAGIC[3] && version!=VERSION_XML_SAFE)) {
+            throw new CompressionException("LZ7: unknown header");
+        }
+        return values(MAGIC[0], MAGIC[1], MAGIC[2], version);
+    }
+
+    /**
+     * Returns the value of an LZ7 character, characters outside the alphabet are rejected.
+     */
+    private static int value(int values[], char c) throws CompressionException {
+        int v = c>0xff ? -1 : values[c];
+        if (v<0 || v>0x3f) {
+            throw new CompressionException("LZ7: invalid character " + (int)c);
+        }
+        return v;
+    }
+
+    /**
+     * CharSequence version of decompressInto(), decompresses the LZ7 data at in[pIn] into out
+     * at pOut and returns the position in in after it.
+     */
+    int decompress(CharSequence in, int pIn, byte out[], int pOut) throws CompressionException {
+        int dstOff = pOut;
+        int flen = decompressedLength(in, pIn);
+        int values[] = values(in, pIn);
+        boolean escaped = values==XML_SAFE_VALUES;
+        pIn += MAGIC.length;
+        while ((value(values, in.charAt(pIn++)) & 0x20) != 0);
+
+        int bytesLeft = flen; // decompressed size
+        while (bytesLeft > 0) {
+            int litLen = 0;
+            int repLen = 0;
+
+            // combined
+            int combined = value(values, in.charAt(pIn++));
+            int litCount = (combined >>> 2) & 0xf;
+            int repCount = combined & 3;
+            litLen += litCount;
+            repLen += repCount;
+            while (litCount==0xf && repCount==0x3) {
+                combined = value(values, in.charAt(pIn++));
+                litCount = (combined >>> 2) & 0xf;
+                repCount = combined & 3;
+                litLen += litCount;
+                repLen += repCount;
+            }
+
+            // more_literal_length_bytes
+            if (litCount==0xf) litCount=0x3f;
+            while (litCount==0x3f) {
+                litCount = value(values, in.charAt(pIn++));
+                litLen += litCount;
+            }
+
+            // more_repeat_length_bytes
+            if (repCount==0x3) repCount=0x3f;
+            while (repCount==0x3f) {
+                repCount = value(values, in.charAt(pIn++));
+                repLen += repCount;
+            }
+
+            // offset
+            int offset = 0;
+            int v = value(values, in.charAt(pIn++));
+            while ((v & 0x20) != 0) {
+                offset |= v & 0x1f;
+                offset <<= 5;
+                v = value(values, in.charAt(pIn++));
+            }
+            offset |= v & 0x1f;
+
+            // literals
+            if (litLen<0 || litLen>bytesLeft || repLen<0) {
+                throw new CompressionException("LZ7: invalid length");
+            }
+            bytesLeft -= litLen;
+            for (int end=pOut+litLen; pOut<end; ) {
+                int c = in.charAt(pIn++);
+                if (c>0xff) {
+                    throw new CompressionException("LZ7: invalid character " + c);
+                }
+                if (escaped && c==ESCAPE) {
+                    c = (value(values, in.charAt(pIn)) << 6) | value(values, in.charAt(pIn+1));
+                    pIn += 2;
+                }
+                out[pOut++] = (byte)c;
+            }
+
+            repLen += MATCH_LEN_MIN;
+            if (repLen>bytesLeft) {
+                repLen=bytesLeft;
+            }
+            if (repLen>0 && (offset<=0 || offset>pOut-dstOff)) {
+                throw new CompressionException("LZ7: invalid offset");
+            }
+            bytesLeft -= repLen;
+            LZV.copyMatch(out, pOut, offset, repLen);
+            pOut += repLen;
+        }
+        return pIn;
+    }
+
+    /**
+     * Writes the sequence if forceWrite is set or if it is not longer than the match,
+     * returns whether it was written.
+     */
+    private boolean writeSequence(byte strAsBytes[], int litStart, int litLen, int offset, int repLen, boolean forceWrite) {
         // <combined_literal_and_repeat_length_bytes>
         // [literal_length_bytes]
         // [repeat_length_bytes]
+        // [offset]
         // [literals]
-        // <offset>
 
-        int[] buf = new int[100];
-        int bufPtr = 0;
+        int start = pOut;
 
         int litLeft = litLen;
         int repLeft = repLen;
 
         while (litLeft >= 0xf && repLeft >= 0x3) {
-            //writeByteAsAscii(0x3f, bos);
-            buf[bufPtr++] = 0x3f;
+            writeByteAsAscii(0x3f);
             litLeft -= 0xf;
             repLeft -= 0x3;
         }
         {
             int combined = (litLeft >= 0xf ? (0xf << 2) : ((litLeft & 0xf) << 2)) | (repLeft >= 0x3 ? 0x3 : (repLeft & 0x3));
-            //writeByteAsAscii(combined, bos);
-            buf[bufPtr++] = combined;
+            writeByteAsAscii(combined);
             litLeft -= 0xf;
             repLeft -= 0x3;
         }
@@ -212,79 +515,138 @@ public class LZ7 {
         // more_literal_length_bytes
         if (litLeft>=0) {
             while (litLeft >= 0x3f) {
-                //writeByteAsAscii(0x3f, bos);
-                buf[bufPtr++] = 0x3f;
+                writeByteAsAscii(0x3f);
                 litLeft -= 0x3f;
             }
-            //writeByteAsAscii(litLeft, bos);
-            buf[bufPtr++] = litLeft;
+            writeByteAsAscii(litLeft);
         }
 
         // more_repeat_length_bytes
         if (repLeft>=0) {
             while (repLeft >= 0x3f) {
-                //writeByteAsAscii(0x3f, bos);
-                buf[bufPtr++] = 0x3f;
+                writeByteAsAscii(0x3f);
                 repLeft -= 0x3f;
             }
-            //writeByteAsAscii(repLeft, bos);
-            buf[bufPtr++] = repLeft;
+            writeByteAsAscii(repLeft);
         }
 
         // offset
-        if (((bufPtr+writeIntAsAscii(offset, bos, false))<=(repLen+MATCH_LEN_MIN)) || forceWrite) {
-            for (int i=0; i<bufPtr; i++) {
-                writeByteAsAscii(buf[i], bos);
-            }
-            writeIntAsAscii(offset, bos, true);
+        if (((pOut-start+writeIntAsAscii(offset, false))<=(repLen+MATCH_LEN_MIN)) || forceWrite) {
+            writeIntAsAscii(offset, true);
             // literals
-            bos.write(strAsBytes, litStart, litLen);
+            if (xmlSafe) {
+                writeEscaped(strAsBytes, litStart, litLen);
+            }
+            else if (out!=null) {
+                System.arraycopy(strAsBytes, litStart, out, pOut, litLen);
+                pOut += litLen;
+            }
+            else {
+                for (int i=litStart; i<litStart+litLen; i++) {
+                    outChars[pOut++] = (char)(strAsBytes[i] & 0xff);
+                }
+            }
             return true;
         } else {
+            pOut = start;
             return false;
         }
     }
 
-    private int byteArrayLastIndexOf(byte str[], int strStart, int strLen, int prefixStart, int prefixLen) {
-        if (strLen==0) {
-            return -1;
-        }
-        strStart--;
-
-        int matchLen = 1;
-        int lastByte = prefixStart + prefixLen - 1;
-        int n = strLen;
-
-        startSearchForLastByte:
-        while (true) {
-            // find last byte
-            while (n!=0 && str[strStart + n] != str[lastByte]) n--;
-            if (n==0) break;
-            n--;
-            // will the rest match?
-            while (n!=0 && matchLen!=prefixLen) {
-                if (str[strStart + n] != str[lastByte - matchLen]) {
-                    n+=matchLen-1;
-                    matchLen=1;
-                    continue startSearchForLastByte;
+    private void insert(byte str[], int p, int end) {
+        int b = str[p] & 0xff;
+        last1[b] = p;
+        if (p+1<end) {
+            last2[(b << 8) | (str[p+1] & 0xff)] = p;
+        }
+        if (p+2<end) {
+            int h = hash(str, p);
+            chain[p & CHAIN_MASK] = head[h];
+            head[h] = p;
+        }
+    }
+
+    private int hash(byte str[], int p) {
+        int v = (str[p] & 0xff) | (str[p+1] & 0xff) << 8 | (str[p+2] & 0xff) << 16;
+        return (v * 0x9E3779B1) >>> hashShift;
+    }
+
+    private int matchLength(byte str[], int cand, int p, int maxLen) {
+        int len = 0;
+        while (len<maxLen && str[cand+len]==str[p+len]) {
+            len++;
+        }
+        return len;
+    }
+
+    /**
+     * Greedy match at p as found by growing the prefix one byte at a time: keep the most
+     * recent candidate while it extends, otherwise take the most recent earlier one that
+     * matches one byte more and still lies within the window measured from the current end.
+     * Returns the match length and leaves the match position in matchPos.
+     */
+    private int findMatch(byte str[], int start, int p, int end) {
+        int maxLen = end - p;
+        int cand = last1[str[p] & 0xff];
+        if (cand<0 || cand<p-WIN_MAX) {
+            return 0;
+        }
+        int len = matchLength(str, cand, p, maxLen);
+        if (len==1 && maxLen>1) {
+            int c2 = last2[((str[p] & 0xff) << 8) | (str[p+1] & 0xff)];
+            if (c2>=start && c2<p && c2>=p+1-WIN_MAX && str[c2]==str[p] && str[c2+1]==str[p+1]) {
+                cand = c2;
+                len = matchLength(str, cand, p, maxLen);
+            }
+        }
+        if (len>=2 && len<maxLen) {
+            int s = head[hash(str, p)];
+            while (s>=0 && s>=p+len-WIN_MAX) {
+                if (s<cand && str[s+len]==str[p+len]) {
+                    int l = matchLength(str, s, p, maxLen);
+                    if (l>len) {
+                        cand = s;
+                        len = l;
+                        if (len==maxLen) {
+                            break;
+                        }
+                    }
                 }
-                matchLen++;
-                n--;
+                s = chain[s & CHAIN_MASK];
+            }
+        }
+        matchPos = cand;
+        return len;
+    }
+
+    private void writeEscaped(byte str[], int p, int len) {
+        for (int end=p+len; p<end; p++) {
+            int b = str[p] & 0xff;
+            if (XML_ESCAPED[b]) {
+                put(ESCAPE);
+                put(alphabet[b >>> 6]);
+                put(alphabet[b & 0x3f]);
+            }
+            else {
+                put(b);
             }
-            if (matchLen == prefixLen) return strStart + n + 1;
         }
-        return -1;
     }
 
-    void writeByteAsAscii(int b, ByteArrayOutputStream bos) {
-        bos.write(b + SPACE);
+    void writeByteAsAscii(int b) {
+        put(alphabet[b]);
     }
 
-    int readByteAsAscii(byte[] in, int pIn) {
-        return in[pIn] - SPACE;
+    private void put(int c) {
+        if (out!=null) {
+            out[pOut++] = (byte)c;
+        }
+        else {
+            outChars[pOut++] = (char)(c & 0xff);
+        }
     }
 
-    int writeIntAsAscii(int b, ByteArrayOutputStream os, boolean doWrite) {
+    int writeIntAsAscii(int b, boolean doWrite) {
         int count = 0;
         // write big-endian for fast decompression
         int shift = 0;
@@ -295,13 +657,13 @@ public class LZ7 {
         }
         while (shift != 0) {
             if (doWrite) {
-                writeByteAsAscii(0x20 | ((b >>> shift) & 0x1f), os);
+                writeByteAsAscii(0x20 | ((b >>> shift) & 0x1f));
             }
             count++;
             shift -= 5;
         }
         if (doWrite) {
-            writeByteAsAscii(b & 0x1f, os);
+            writeByteAsAscii(b & 0x1f);
         }
         return count+1;
     }
@@ -0,0 +1,162 @@
+package nl.v4you.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+
+/**
+ * Reads the LZ7 blocks written by LZ7OutputStream from a Reader. Characters are only read
+ * while the decoder needs them, so a block is returned as soon as its last character has
+ * arrived, which makes the stream usable on a socket or pipe. Characters the Reader returns
+ * beyond the block are buffered, so the Reader should not be used for anything else.
+ */
+public class LZ7InputStream extends InputStream {
+    private final Reader in;
+    private final LZ7 lz7 = new LZ7();
+    private final Chars chars = new Chars();
+    private char cbuf[] = new char[8192];
+    private int cPos = 0;
+    private int cLim = 0;
+    private boolean eof = false;
+    private byte block[] = new byte[0];
+    private int pos = 0;
+    private int lim = 0;
+
+    public LZ7InputStream(Reader in) {
+        this.in = in;
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos==lim && !nextBlock()) {
+            return -1;
+        }
+        return block[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len==0) {
+            return 0;
+        }
+        if (pos==lim && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, lim-pos);
+        System.arraycopy(block, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return lim - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        do {
+            // the next block starts at cbuf[0]
+            System.arraycopy(cbuf, cPos, cbuf, 0, cLim-cPos);
+            cLim -= cPos;
+            cPos = 0;
+            if (!fill(1)) {
+                return false;
+            }
+            try {
+                int len = LZ7.decompressedLength(chars, 0);
+                if (block.length<len) {
+                    block = new byte[len];
+                }
+                cPos = lz7.decompress(chars, 0, block, 0);
+                pos = 0;
+                lim = len;
+            }
+            catch (ReadFailure e) {
+                throw e.getCause();
+            }
+            catch (CompressionException e) {
+                throw new IOException("LZ7: corrupt data", e);
+            }
+        } while (lim==0);
+        return true;
+    }
+
+    /**
+     * Reads until at least n characters are buffered, returns false if the reader ends first.
+     */
+    private boolean fill(int n) throws IOException {
+        while (cLim<n) {
+            if (eof) {
+                return false;
+            }
+            if (cLim==cbuf.length) {
+                cbuf = Arrays.copyOf(cbuf, 2*cbuf.length);
+            }
+            int r = in.read(cbuf, cLim, cbuf.length-cLim);
+            if (r<0) {
+                eof = true;
+            }
+            else {
+                cLim += r;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * The buffered characters, charAt() reads from the reader when the decoder gets past them.
+     * Read errors and the end of the reader are passed through the decoder as ReadFailure.
+     */
+    private class Chars implements CharSequence {
+        @Override
+        public char charAt(int index) {
+            if (index>=cLim) {
+                try {
+                    if (!fill(index+1)) {
+                        throw new EOFException("LZ7: unexpected end of data");
+                    }
+                }
+                catch (IOException e) {
+                    throw new ReadFailure(e);
+                }
+            }
+            return cbuf[index];
+        }
+
+        @Override
+        public int length() {
+            return cLim;
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return CharBuffer.wrap(cbuf, start, end-start);
+        }
+
+        @Override
+        public String toString() {
+            return new String(cbuf, 0, cLim);
+        }
+    }
+
+    private static class ReadFailure extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        ReadFailure(IOException cause) {
+            super(cause);
+        }
+
+        @Override
+        public synchronized IOException getCause() {
+            return (IOException)super.getCause();
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package nl.v4you.compression;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+
+/**
+ * Compresses bytes to LZ7 characters on a Writer, block by block. Every block is a complete
+ * LZ7 text, so a stream of one block can also be read with LZ7.decompress(CharSequence, ...).
+ * Read the blocks back with LZ7InputStream. With xmlSafe set the characters can be written
+ * into XML without escaping, see LZ7(boolean).
+ */
+public class LZ7OutputStream extends OutputStream {
+    public static final int BLOCK_SIZE_DEFAULT = 1 << 16;
+
+    private final Writer out;
+    private final LZ7 lz7;
+    private final byte block[];
+    private int pos = 0;
+    private boolean finished = false;
+
+    public LZ7OutputStream(Writer out) {
+        this(out, BLOCK_SIZE_DEFAULT);
+    }
+
+    public LZ7OutputStream(Writer out, int blockSize) {
+        this(out, blockSize, false);
+    }
+
+    public LZ7OutputStream(Writer out, int blockSize, boolean xmlSafe) {
+        if (blockSize<1) {
+            throw new IllegalArgumentException("blockSize must be > 0");
+        }
+        this.out = out;
+        this.lz7 = new LZ7(xmlSafe);
+        block = new byte[blockSize];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        block[pos++] = (byte)b;
+        if (pos==block.length) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        ensureOpen();
+        while (len>0) {
+            int n = Math.min(len, block.length-pos);
+            System.arraycopy(b, off, block, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+            if (pos==block.length) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the buffered bytes as a (short) block and flushes the writer.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data without closing the writer.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBlock();
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("LZ7: stream finished");
+        }
+    }
+
+    private void writeBlock() throws IOException {
+        if (pos==0) {
+            return;
+        }
+        lz7.compress(block, 0, pos, out);
+        pos = 0;
+    }
+}
@@ -1,237 +1,1156 @@
 package nl.v4you.compression;
 
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
 
 // <token><more_literal_length_bytes><literals><repeat_bytes><more_repeat_length_bytes>
 
+// a stream starts with its length as varint, large window streams have a header in front:
+// <0x80 0x00> <version> <window log> <length> <sequences>
+// a legacy stream never starts with 0x80 0x00, its length would end with an empty group.
+// Version 2 offsets are varints, so they can reach back up to 1 << window log bytes, and
+// long distance matches of 64 bytes or more up to the start of the input.
+
 public class LZV {
 
     private static final int MATCH_LEN_MIN = 3;
-    private static final int WIN_MAX = 32750;
+    static final int WIN_MAX = 32750;
+
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 4;
+    public static final int WINDOW_LOG_MIN = 16;
+    public static final int WINDOW_LOG_MAX = 22;
+
+    // hash-chain match finder: head[] holds the most recent position for a hash of
+    // the next MATCH_LEN_MIN bytes, chain[] links every position to the previous one
+    // with the same hash (indexed modulo a power of two larger than the window)
+    private static final int HASH_LOG_MIN = 8;
+    private static final int HASH_LOG_MAX = 16;
+    private static final int CHAIN_SIZE = 0x8000;
+
+    // parsers: take the longest match at the current position, first look one position ahead,
+    // or choose matches and literals with the lowest output size over a range of positions
+    private static final int GREEDY = 0;
+    private static final int LAZY = 1;
+    private static final int OPTIMAL = 2;
+
+    public static final int LEVEL_FAST = 1;
+    public static final int LEVEL_DEFAULT = 3;
+    public static final int LEVEL_LAZY = 5;
+    public static final int LEVEL_MAX = 9;
+
+    // per level: parser, chain depth, nice match length (long enough to stop searching)
+    private static final int LEVELS[][] = {
+            { GREEDY, 4, 16 },
+            { GREEDY, 8, 32 },
+            { GREEDY, 16, 64 },
+            { LAZY, 16, 64 },
+            { LAZY, 32, 128 },
+            { LAZY, 64, 256 },
+            { OPTIMAL, 32, 64 },
+            { OPTIMAL, 64, 128 },
+            { OPTIMAL, 256, 273 } };
+
+    private static final int OPT_CHUNK = 4096; // positions per optimal parse
+
+    // long distance matching (large window format only): minimum length and chunk table size
+    private static final int LDM_LEN = 64;
+    private static final int LDM_HASH_LOG_MIN = 10;
+    private static final int LDM_HASH_LOG_MAX = 22;
+    private static final int LDM_PRIME = 0x01000193;
+    private static final int LDM_PRIME_POW = pow(LDM_PRIME, LDM_LEN);
+    private static final int SKIP_TRIGGER = 6; // the step grows by one every 64 misses
+
+    private static final int WILD_COPY = 16; // short literals and matches are copied as 16 bytes when there is room
+    private static final int BULK_MIN = 32; // shorter matches are copied byte by byte between buffers
+    private static final long MAP_CHUNK = 1L << 30;
+
+    private int head[] = new int[1 << HASH_LOG_MAX];
+    private final int chain[];
+    private final int chainMask;
+    private int hashShift;
+    private int matchDist;
+
+    private final int windowLog; // 0 for the legacy format
+    private final int winMax;
+
+    private final int parser;
+    private final int chainDepth;
+    private final int niceLen;
+
+    // improving matches found by findMatches(), increasing in length and distance
+    private final int matchLens[];
+    private final int matchDists[];
+
+    // optimal parser: cheapest way to reach every position of the current range
+    private int price[];
+    private int litRun[];
+    private int fromLen[];
+    private int fromDist[];
+
+    private int ldmTable[];
+    private int ldmPos[];
+    private int ldmLen[];
+    private int ldmDist[];
+
+    private byte scratchIn[];
+    private byte scratchOut[];
+
+    private LZVDictionary dict; // set while compressing with a dictionary
+    private LZVDictionary dictLoaded; // dictionary at the start of dictBuf
+    private byte dictBuf[];
+
+    public LZV() {
+        this(LEVEL_DEFAULT);
+    }
+
+    /**
+     * Level 1-3 parse greedily, 4-6 use lazy matching and 7-9 optimal parsing, searching
+     * more candidates at higher levels. All levels produce the same format.
+     */
+    public LZV(int level) {
+        this(level, 0);
+    }
+
+    /**
+     * Compresses in the large window format: matches reach back up to 1 << windowLog bytes
+     * (WINDOW_LOG_MIN to WINDOW_LOG_MAX) with varint offsets. Every LZV instance decompresses
+     * both formats. The match finder allocates 4 bytes per window byte. In inputs larger than
+     * the window repeats of 64 bytes or more are found at any distance.
+     */
+    public LZV(int level, int windowLog) {
+        checkLevel(level);
+        if (windowLog!=0 && (windowLog<WINDOW_LOG_MIN || windowLog>WINDOW_LOG_MAX)) {
+            throw new IllegalArgumentException("windowLog must be between " + WINDOW_LOG_MIN + " and " + WINDOW_LOG_MAX);
+        }
+        this.windowLog = windowLog;
+        winMax = windowLog==0 ? WIN_MAX : (1 << windowLog) - 1;
+        chain = new int[windowLog==0 ? CHAIN_SIZE : 1 << windowLog];
+        chainMask = chain.length - 1;
+        parser = LEVELS[level-1][0];
+        chainDepth = LEVELS[level-1][1];
+        niceLen = LEVELS[level-1][2];
+        matchLens = new int[chainDepth];
+        matchDists = new int[chainDepth];
+    }
+
+    static void checkLevel(int level) {
+        if (level<1 || level>LEVEL_MAX) {
+            throw new IllegalArgumentException("level must be between 1 and " + LEVEL_MAX);
+        }
+    }
 
     public byte[] compress(byte strAsBytes[]) {
+        byte out[] = new byte[maxCompressedLength(strAsBytes.length)];
+        return Arrays.copyOf(out, compress(strAsBytes, 0, strAsBytes.length, out, 0));
+    }
+
+    /**
+     * Compresses src[srcOff..srcOff+srcLen) into dst at dstOff and returns the number of bytes
+     * written. At least maxCompressedLength(srcLen) bytes must be available in dst.
+     */
+    public int compress(byte src[], int srcOff, int srcLen, byte dst[], int dstOff) {
+        if (dst.length-dstOff < maxCompressedLength(srcLen)) {
+            throw new IllegalArgumentException("LZV: destination smaller than maxCompressedLength(" + srcLen + ")");
+        }
+        int pOut = writeHeader(srcLen, dst, dstOff);
+        pOut = compressBlock(src, srcOff, srcOff, srcOff+srcLen, dst, pOut);
+        return pOut - dstOff;
+    }
+
+    public byte[] decompress(byte in[]) {
+        byte out[] = new byte[decompressedLength(in, 0)];
+        try {
+            decompress(in, 0, in.length, out, 0);
+        }
+        catch (CompressionException e) {
+            throw corrupt(e);
+        }
+        return out;
+    }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    /**
+     * Decompresses the LZV stream in src[srcOff..srcOff+srcLen) into dst at dstOff and returns
+     * the number of bytes written, which equals decompressedLength(src, srcOff). Matches that
+     * reach before dstOff are rejected, so dst[0..dstOff) is never copied into the output.
+     */
+    public int decompress(byte src[], int srcOff, int srcLen, byte dst[], int dstOff) throws CompressionException {
+        int end = srcOff + srcLen;
+        int h = headerSize(src, srcOff, end);
+        int pIn = srcOff + h;
+        int flen = 0;
+        int shift = 0;
+        int v;
+        do {
+            need(pIn, 1, end);
+            v = src[pIn++];
+            flen |= (v & 0x7f) << shift;
+            shift += 7;
+        } while ((v & 0x80)!=0);
+        if (flen<0) {
+            throw new CompressionException("LZV: invalid length");
+        }
+        if (dst.length-dstOff < flen) {
+            throw new IllegalArgumentException("LZV: destination too small, " + flen + " bytes needed");
+        }
+        decompressBlock(src, pIn, end, dst, dstOff, dstOff, flen, h!=0);
+        return flen;
+    }
 
-        int i = strAsBytes.length;
-        while (i>0x7f) {
-            bos.write(0x80 | (i & 0x7f));
-            i >>>= 7;
+    /**
+     * The whole array methods report corrupt input as IllegalStateException.
+     */
+    private static IllegalStateException corrupt(CompressionException e) {
+        return new IllegalStateException(e.getMessage(), e);
+    }
+
+    /**
+     * Returns the decompressed length stored in the header of the LZV stream at src[off].
+     */
+    public static int decompressedLength(byte src[], int off) {
+        off += headerSize(src, off);
+        int flen = 0;
+        int shift = 0;
+        while ((src[off] & 0x80) != 0) {
+            flen |= (src[off++] & 0x7f) << shift;
+            shift += 7;
         }
-        bos.write(i);
+        return flen | ((src[off] & 0x7f) << shift);
+    }
 
-        int ptr=0;
+    /**
+     * Returns the size of the large window header at src[off], 0 for a legacy stream.
+     */
+    private static int headerSize(byte src[], int off) {
+        if (src[off]!=(byte)0x80 || src[off+1]!=0) {
+            return 0;
+        }
+        checkHeader(src[off+2], src[off+3]);
+        return HEADER_SIZE;
+    }
 
-        int litLen=0;
-        int prefixLen=0;
+    /**
+     * As headerSize() above for the input src[off..end).
+     */
+    private static int headerSize(byte src[], int off, int end) throws CompressionException {
+        if (end-off<2 || src[off]!=(byte)0x80 || src[off+1]!=0) {
+            return 0;
+        }
+        need(off, HEADER_SIZE, end);
+        return headerSize(src, off);
+    }
 
-        int lastIndexOfPrefix=-1;
-        while (ptr<strAsBytes.length) {
-            int lastIndexOf;
-            if (lastIndexOfPrefix!=-1) {
-                if (strAsBytes[ptr]==strAsBytes[lastIndexOfPrefix+prefixLen]) {
-                    lastIndexOf = lastIndexOfPrefix;
-                }
-                else {
-                    int winStart = ptr - WIN_MAX;
-                    if (winStart<0) {
-                        winStart=0;
-                    }
-                    lastIndexOf = byteArrayLastIndexOf(
-                            strAsBytes,
-                            winStart,
-                            (lastIndexOfPrefix + prefixLen + 1) - winStart,
-                            ptr - prefixLen,
-                            prefixLen + 1);
-                }
-            }
-            else {
-                int winStart = ptr - WIN_MAX;
-                if (winStart<0) {
-                    winStart=0;
-                }
-                lastIndexOf = byteArrayLastIndexOf(
-                        strAsBytes,
-                        winStart,
-                        ptr-winStart,
-                        ptr - prefixLen,
-                        prefixLen + 1);
-            }
-            if (lastIndexOf!=-1) {
-                prefixLen++;
-                lastIndexOfPrefix = lastIndexOf;
-            }
-            else {
-                if (prefixLen==0) {
-                    litLen++;
-                    prefixLen=0;
-                }
-                else if (prefixLen<MATCH_LEN_MIN) {
-                    litLen+=prefixLen;
-                    prefixLen=0;
-                    ptr--; // retry byte we could not find earlier
-                }
-                else {
-                    int back = ptr-prefixLen-lastIndexOfPrefix;
-                    writeSequence(strAsBytes, ptr-prefixLen-litLen, litLen, back, prefixLen-MATCH_LEN_MIN, bos);
-                    litLen=0;
-                    prefixLen=0;
-                    ptr--; // retry byte we could not find earlier
-                }
-                lastIndexOfPrefix=-1;
-            }
-            ptr++;
+    private static int headerSize(ByteBuffer src, int off) {
+        if (src.get(off)!=(byte)0x80 || src.get(off+1)!=0) {
+            return 0;
         }
-        if (prefixLen==0) {
-            writeSequence(strAsBytes, ptr-prefixLen-litLen, litLen, 0, 0, bos);
+        checkHeader(src.get(off+2), src.get(off+3));
+        return HEADER_SIZE;
+    }
+
+    private static void checkHeader(byte version, byte windowLog) {
+        if (version!=VERSION) {
+            throw new IllegalStateException("LZV: unsupported version " + version);
         }
-        else {
-            int back = ptr-prefixLen-lastIndexOfPrefix;
-            int prefixLenNormalized=prefixLen-MATCH_LEN_MIN;
-            if (prefixLenNormalized<0) {
-                prefixLenNormalized=0;
+        if (windowLog<WINDOW_LOG_MIN || windowLog>WINDOW_LOG_MAX) {
+            throw new IllegalStateException("LZV: invalid window log " + windowLog);
+        }
+    }
+
+    private int writeHeader(int len, byte out[], int pOut) {
+        if (windowLog!=0) {
+            out[pOut++] = (byte)0x80;
+            out[pOut++] = 0;
+            out[pOut++] = VERSION;
+            out[pOut++] = (byte)windowLog;
+        }
+        return writeLength(len, out, pOut);
+    }
+
+    /**
+     * Compresses src using the dictionary as window content in front of it.
+     * The output starts with the dictionary id: <dict_id> [header] <length> <sequences>
+     */
+    public byte[] compress(byte src[], LZVDictionary dictionary) {
+        int d = dictionary.size();
+        byte buf[] = loadDictionary(dictionary, src.length);
+        System.arraycopy(src, 0, buf, d, src.length);
+        byte out[] = new byte[5 + maxCompressedLength(src.length)];
+        int pOut = writeLength(dictionary.getId(), out, 0);
+        pOut = writeHeader(src.length, out, pOut);
+        dict = dictionary;
+        try {
+            pOut = compressBlock(buf, d, d, d+src.length, out, pOut);
+        }
+        finally {
+            dict = null;
+        }
+        return Arrays.copyOf(out, pOut);
+    }
+
+    public byte[] decompress(byte in[], LZVDictionary dictionary) {
+        int id = dictionaryId(in, 0);
+        if (id!=dictionary.getId()) {
+            throw new IllegalStateException("LZV: compressed with dictionary " + id + ", not " + dictionary.getId());
+        }
+        int pIn = 0;
+        while ((in[pIn++] & 0x80) != 0);
+        int flen = decompressedLength(in, pIn);
+        int h = headerSize(in, pIn);
+        pIn += h;
+        while ((in[pIn++] & 0x80) != 0);
+        int d = dictionary.size();
+        byte buf[] = loadDictionary(dictionary, flen);
+        try {
+            decompressBlock(in, pIn, in.length, buf, 0, d, flen, h!=0);
+        }
+        catch (CompressionException e) {
+            throw corrupt(e);
+        }
+        return Arrays.copyOfRange(buf, d, d+flen);
+    }
+
+    /**
+     * Returns the id of the dictionary needed to decompress the stream at src[off].
+     */
+    public static int dictionaryId(byte src[], int off) {
+        return decompressedLength(src, off); // same varint encoding
+    }
+
+    /**
+     * Compresses target with reference (for example the previous version of a document) as
+     * window content in front of it, so the output is about the size of the changes.
+     * Matches reach as far back as the window: for references larger than 32 KB use
+     * new LZV(level, windowLog). The output starts with the reference length:
+     * <reference_length> [header] <length> <sequences>
+     */
+    public byte[] compressDelta(byte reference[], byte target[]) {
+        int r = reference.length;
+        byte buf[] = dictBuf = ensureCapacity(dictBuf, r + target.length);
+        dictLoaded = null;
+        System.arraycopy(reference, 0, buf, 0, r);
+        System.arraycopy(target, 0, buf, r, target.length);
+        byte out[] = new byte[5 + maxCompressedLength(target.length)];
+        int pOut = writeLength(r, out, 0);
+        pOut = writeHeader(target.length, out, pOut);
+        pOut = compressBlock(buf, 0, r, r+target.length, out, pOut);
+        return Arrays.copyOf(out, pOut);
+    }
+
+    public byte[] decompressDelta(byte reference[], byte delta[]) {
+        int r = decompressedLength(delta, 0); // same varint encoding
+        if (r!=reference.length) {
+            throw new IllegalStateException("LZV: delta against a reference of " + r + " bytes, not " + reference.length);
+        }
+        int pIn = 0;
+        while ((delta[pIn++] & 0x80) != 0);
+        int flen = decompressedLength(delta, pIn);
+        int h = headerSize(delta, pIn);
+        pIn += h;
+        while ((delta[pIn++] & 0x80) != 0);
+        byte buf[] = dictBuf = ensureCapacity(dictBuf, r + flen);
+        dictLoaded = null;
+        System.arraycopy(reference, 0, buf, 0, r);
+        try {
+            decompressBlock(delta, pIn, delta.length, buf, 0, r, flen, h!=0);
+        }
+        catch (CompressionException e) {
+            throw corrupt(e);
+        }
+        return Arrays.copyOfRange(buf, r, r+flen);
+    }
+
+    /**
+     * Returns a buffer that starts with the dictionary and has room for len more bytes.
+     * The dictionary is only copied again when another one is used.
+     */
+    private byte[] loadDictionary(LZVDictionary dictionary, int len) {
+        int d = dictionary.size();
+        if (dictBuf==null || dictBuf.length<d+len || dictLoaded!=dictionary) {
+            if (dictBuf==null || dictBuf.length<d+len) {
+                dictBuf = new byte[d+len];
             }
-            writeSequence(strAsBytes, ptr-prefixLen-litLen, litLen, back, prefixLenNormalized, bos);
+            System.arraycopy(dictionary.data, 0, dictBuf, 0, d);
+            dictLoaded = dictionary;
         }
-        return bos.toByteArray();
+        return dictBuf;
     }
 
-    public byte[] decompress(byte in[]) {
+    /**
+     * Compresses the remaining bytes of src into dst, which needs at least
+     * maxCompressedLength(src.remaining()) bytes remaining. Both positions are advanced,
+     * returns the number of bytes written.
+     */
+    public int compress(ByteBuffer src, ByteBuffer dst) {
+        int srcLen = src.remaining();
+        if (dst.remaining() < maxCompressedLength(srcLen)) {
+            throw new IllegalArgumentException("LZV: destination smaller than maxCompressedLength(" + srcLen + ")");
+        }
+        byte in[];
+        int inOff;
+        if (src.hasArray()) {
+            in = src.array();
+            inOff = src.arrayOffset() + src.position();
+        }
+        else {
+            // the match finder needs random access, so direct input is staged on the heap
+            in = scratchIn = ensureCapacity(scratchIn, srcLen);
+            inOff = 0;
+            src.duplicate().get(in, 0, srcLen);
+        }
+        int written;
+        if (dst.hasArray()) {
+            written = compress(in, inOff, srcLen, dst.array(), dst.arrayOffset() + dst.position());
+            // the setters are called through Buffer, the ByteBuffer overrides only exist since Java 9
+            ((Buffer)dst).position(dst.position() + written);
+        }
+        else {
+            scratchOut = ensureCapacity(scratchOut, maxCompressedLength(srcLen));
+            written = compress(in, inOff, srcLen, scratchOut, 0);
+            dst.put(scratchOut, 0, written);
+        }
+        ((Buffer)src).position(src.position() + srcLen);
+        return written;
+    }
 
-        int pIn=0;
+    /**
+     * Decompresses the LZV stream in the remaining bytes of src into dst. Heap and direct
+     * buffers (for example a MappedByteBuffer) are read and written in place. Both positions
+     * are advanced, returns the number of bytes written. Matches that reach before the position
+     * of dst are rejected.
+     */
+    public int decompress(ByteBuffer src, ByteBuffer dst) throws CompressionException {
+        int end = src.limit();
+        int h = 0;
+        if (end-src.position()>=2 && src.get(src.position())==(byte)0x80 && src.get(src.position()+1)==0) {
+            need(src.position(), HEADER_SIZE, end);
+            h = headerSize(src, src.position());
+        }
+        int pIn = src.position() + h;
+        int flen = 0;
+        int shift = 0;
+        int v;
+        do {
+            need(pIn, 1, end);
+            v = src.get(pIn++);
+            flen |= (v & 0x7f) << shift;
+            shift += 7;
+        } while ((v & 0x80)!=0);
+        if (flen<0) {
+            throw new CompressionException("LZV: invalid length");
+        }
+        if (dst.remaining() < flen) {
+            throw new IllegalArgumentException("LZV: destination too small, " + flen + " bytes needed");
+        }
+        if (src.hasArray() && dst.hasArray()) {
+            int base = src.arrayOffset();
+            int dstOff = dst.arrayOffset() + dst.position();
+            pIn = decompressBlock(src.array(), base + pIn, base + end, dst.array(), dstOff, dstOff, flen, h!=0) - base;
+        }
+        else {
+            pIn = decompressBlock(src, pIn, end, dst, dst.position(), dst.position(), flen, h!=0);
+        }
+        ((Buffer)src).position(pIn);
+        ((Buffer)dst).position(dst.position() + flen);
+        return flen;
+    }
 
-        int flen=0;
-        int shift=0;
-        while ((in[pIn] & 0x80) != 0) {
-            flen |= (in[pIn++] & 0x7f) << shift;
+    /**
+     * Returns the decompressed length stored in the header at the position of src,
+     * the position is not changed.
+     */
+    public static int decompressedLength(ByteBuffer src) {
+        int p = src.position();
+        p += headerSize(src, p);
+        int flen = 0;
+        int shift = 0;
+        while ((src.get(p) & 0x80) != 0) {
+            flen |= (src.get(p++) & 0x7f) << shift;
             shift += 7;
         }
-        flen |= (in[pIn++] & 0x7f) << shift;
+        return flen | ((src.get(p) & 0x7f) << shift);
+    }
+
+    /**
+     * Compresses a whole file into an LZV frame (see LZVOutputStream). The input is
+     * memory mapped in chunks instead of being read through a stream.
+     */
+    public static void compressFile(File in, File out) throws IOException {
+        compressFile(in, out, false);
+    }
+
+    /**
+     * As compressFile() above, an indexed file can be read in ranges with LZVRandomAccess.
+     */
+    public static void compressFile(File in, File out, boolean indexed) throws IOException {
+        try (FileChannel ch = new FileInputStream(in).getChannel();
+             LZVOutputStream os = new LZVOutputStream(new BufferedOutputStream(new FileOutputStream(out)),
+                     LZVFrame.BLOCK_SIZE_DEFAULT, true, LEVEL_DEFAULT, indexed)) {
+            long size = ch.size();
+            for (long pos=0; pos<size; pos+=MAP_CHUNK) {
+                os.write(ch.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(MAP_CHUNK, size-pos)));
+            }
+        }
+    }
+
+    /**
+     * Worst case size of compress() output for len input bytes.
+     */
+    public static int maxCompressedLength(int len) {
+        // header + varint length + literals + one extra length byte per 255 literals + final sequence
+        return 5 + len + len / 0xff + 16;
+    }
 
-        byte out[] = new byte[flen];
+    /**
+     * Decompresses sequences from in[pIn..inEnd) until size bytes are written to out at pOut,
+     * returns the position in in after the last sequence. Matches may refer to bytes
+     * in out[outStart..pOut), a match reaching further back is an invalid offset.
+     */
+    int decompressBlock(byte in[], int pIn, int inEnd, byte out[], int outStart, int pOut, int size) throws CompressionException {
+        return decompressBlock(in, pIn, inEnd, out, outStart, pOut, size, false);
+    }
 
-        int bytesLeft=flen; // decompressed size
-        int pOut=0;
+    /**
+     * As decompressBlock() above, varOffsets selects the offsets of the large window format.
+     */
+    private int decompressBlock(byte in[], int pIn, int inEnd, byte out[], int outStart, int pOut, int size, boolean varOffsets) throws CompressionException {
+        int bytesLeft=size; // decompressed size
+        int limit=pOut+size;
         while (bytesLeft>0) {
+            need(pIn, 1, inEnd);
             int token = in[pIn++] & 0xff;
             int copyLen = token>>>4;
             if (copyLen==0xf) {
-                int cpyMore = in[pIn++] & 0xff;
-                copyLen += cpyMore;
-                while (cpyMore==0xff) {
+                int cpyMore;
+                do {
+                    need(pIn, 1, inEnd);
                     cpyMore = in[pIn++] & 0xff;
                     copyLen += cpyMore;
-                }
+                    if (copyLen>bytesLeft) {
+                        throw new CompressionException("LZV: invalid length");
+                    }
+                } while (cpyMore==0xff);
             }
             if (copyLen!=0) {
+                if (copyLen>bytesLeft) {
+                    throw new CompressionException("LZV: invalid length");
+                }
+                need(pIn, copyLen, inEnd);
                 bytesLeft-=copyLen;
-                System.arraycopy(in, pIn, out, pOut, copyLen);
+                if (copyLen<=WILD_COPY && pIn+WILD_COPY<=inEnd && pOut+WILD_COPY<=limit) {
+                    System.arraycopy(in, pIn, out, pOut, WILD_COPY);
+                }
+                else {
+                    System.arraycopy(in, pIn, out, pOut, copyLen);
+                }
                 pIn+=copyLen;
                 pOut+=copyLen;
             }
 
+            need(pIn, 1, inEnd);
             int offset = in[pIn++] & 0xff;
             if ((offset & 0x80)!=0) {
                 offset &= 0x7f;
-                offset |= (in[pIn++] & 0xff) << 7;
+                if (varOffsets) {
+                    int v;
+                    int shift = 7;
+                    do {
+                        need(pIn, 1, inEnd);
+                        v = in[pIn++] & 0xff;
+                        offset |= (v & 0x7f) << shift;
+                        shift += 7;
+                    } while ((v & 0x80)!=0);
+                }
+                else {
+                    need(pIn, 1, inEnd);
+                    offset |= (in[pIn++] & 0xff) << 7;
+                }
             }
             int matchLen = token & 0xf;
             if (matchLen==0xf) {
-                int cpyMore = in[pIn++] & 0xff;
-                matchLen += cpyMore;
-                while (cpyMore==0xff) {
+                int cpyMore;
+                do {
+                    need(pIn, 1, inEnd);
                     cpyMore = in[pIn++] & 0xff;
                     matchLen += cpyMore;
+                    if (matchLen>bytesLeft) {
+                        throw new CompressionException("LZV: invalid length");
+                    }
+                } while (cpyMore==0xff);
+            }
+            matchLen += MATCH_LEN_MIN;
+            if (matchLen>bytesLeft) {
+                matchLen=bytesLeft;
+            }
+            if (matchLen>0 && (offset<=0 || offset>pOut-outStart)) {
+                throw new CompressionException("LZV: invalid offset");
+            }
+            bytesLeft -= matchLen;
+            if (matchLen<=WILD_COPY && offset>=WILD_COPY && pOut+WILD_COPY<=limit) {
+                System.arraycopy(out, pOut-offset, out, pOut, WILD_COPY);
+            }
+            else {
+                copyMatch(out, pOut, offset, matchLen);
+            }
+            pOut += matchLen;
+        }
+        return pIn;
+    }
+
+    /**
+     * Throws when fewer than n bytes of input are left at pIn.
+     */
+    private static void need(int pIn, int n, int inEnd) throws CompressionException {
+        if (n>inEnd-pIn) {
+            throw new CompressionException("LZV: input truncated");
+        }
+    }
+
+    /**
+     * Copies len bytes from offset bytes back to buf[pOut..]. Short matches are copied byte
+     * by byte, overlapping long ones by repeating the pattern with copies that double in size.
+     * An offset of 0 would never advance and is rejected.
+     */
+    static void copyMatch(byte buf[], int pOut, int offset, int len) {
+        if (offset<=0 && len>0) {
+            throw new IllegalArgumentException("offset must be > 0");
+        }
+        int src = pOut - offset;
+        while (offset<len) {
+            System.arraycopy(buf, src, buf, pOut, offset);
+            pOut += offset;
+            len -= offset;
+            offset += offset;
+        }
+        System.arraycopy(buf, src, buf, pOut, len);
+    }
+
+    /**
+     * ByteBuffer version of decompressBlock() using absolute positions, literals and long
+     * matches are copied as bulk puts between views of the buffers.
+     */
+    private int decompressBlock(ByteBuffer in, int pIn, int inEnd, ByteBuffer out, int outStart, int pOut, int size, boolean varOffsets) throws CompressionException {
+        ByteBuffer inView = in.duplicate();
+        ByteBuffer outView = out.duplicate();
+        ByteBuffer repView = out.duplicate();
+        int bytesLeft=size;
+        while (bytesLeft>0) {
+            need(pIn, 1, inEnd);
+            int token = in.get(pIn++) & 0xff;
+            int copyLen = token>>>4;
+            if (copyLen==0xf) {
+                int cpyMore;
+                do {
+                    need(pIn, 1, inEnd);
+                    cpyMore = in.get(pIn++) & 0xff;
+                    copyLen += cpyMore;
+                    if (copyLen>bytesLeft) {
+                        throw new CompressionException("LZV: invalid length");
+                    }
+                } while (cpyMore==0xff);
+            }
+            if (copyLen!=0) {
+                if (copyLen>bytesLeft) {
+                    throw new CompressionException("LZV: invalid length");
+                }
+                need(pIn, copyLen, inEnd);
+                bytesLeft-=copyLen;
+                ((Buffer)inView).limit(pIn+copyLen);
+                ((Buffer)inView).position(pIn);
+                ((Buffer)outView).position(pOut);
+                outView.put(inView);
+                pIn+=copyLen;
+                pOut+=copyLen;
+            }
+
+            need(pIn, 1, inEnd);
+            int offset = in.get(pIn++) & 0xff;
+            if ((offset & 0x80)!=0) {
+                offset &= 0x7f;
+                if (varOffsets) {
+                    int v;
+                    int shift = 7;
+                    do {
+                        need(pIn, 1, inEnd);
+                        v = in.get(pIn++) & 0xff;
+                        offset |= (v & 0x7f) << shift;
+                        shift += 7;
+                    } while ((v & 0x80)!=0);
                 }
+                else {
+                    need(pIn, 1, inEnd);
+                    offset |= (in.get(pIn++) & 0xff) << 7;
+                }
+            }
+            int matchLen = token & 0xf;
+            if (matchLen==0xf) {
+                int cpyMore;
+                do {
+                    need(pIn, 1, inEnd);
+                    cpyMore = in.get(pIn++) & 0xff;
+                    matchLen += cpyMore;
+                    if (matchLen>bytesLeft) {
+                        throw new CompressionException("LZV: invalid length");
+                    }
+                } while (cpyMore==0xff);
             }
             matchLen += MATCH_LEN_MIN;
             if (matchLen>bytesLeft) {
                 matchLen=bytesLeft;
             }
+            if (matchLen>0 && (offset<=0 || offset>pOut-outStart)) {
+                throw new CompressionException("LZV: invalid offset");
+            }
             bytesLeft -= matchLen;
-            while (matchLen>0) {
-                int cStart = pOut - offset;
-                int len=matchLen;
-                if ((pOut-cStart)<matchLen) {
-                    len = pOut-cStart;
+            if (offset<matchLen || matchLen<BULK_MIN) {
+                for (int cStart=pOut-offset; matchLen>0; matchLen--) {
+                    out.put(pOut++, out.get(cStart++));
                 }
-                System.arraycopy(out, cStart, out, pOut, len);
-                pOut += len;
-                matchLen -= len;
+            }
+            else {
+                ((Buffer)repView).limit(pOut-offset+matchLen);
+                ((Buffer)repView).position(pOut-offset);
+                ((Buffer)outView).position(pOut);
+                outView.put(repView);
+                pOut += matchLen;
             }
         }
-        return out;
+        return pIn;
     }
 
-    private void writeSequence(byte strAsBytes[], int litStart, int litLen, int offset, int repLen, ByteArrayOutputStream bos) {
-        int token = litLen>=0xf ? 0xf0 : (litLen<<4);
-        token |= repLen>=0xf ? 0xf : repLen;
-        bos.write(token);
-        if ((litLen-0xf)>=0) {
-            int bytesLeft=litLen-0xf;
-            while (bytesLeft>=0xff) {
-                bos.write(0xff);
-                bytesLeft-=0xff;
+    private static byte[] ensureCapacity(byte buf[], int len) {
+        return buf!=null && buf.length>=len ? buf : new byte[len];
+    }
+
+    private int writeLength(int len, byte out[], int pOut) {
+        while (len>0x7f) {
+            out[pOut++] = (byte)(0x80 | (len & 0x7f));
+            len >>>= 7;
+        }
+        out[pOut++] = (byte)len;
+        return pOut;
+    }
+
+    /**
+     * Compresses buf[start..end) into out at pOut, returns the new output position.
+     * The bytes buf[winStart..start) are used as history only. Input that does not compress
+     * is written as a single literal run, see storedLength().
+     */
+    int compressBlock(byte buf[], int winStart, int start, int end, byte out[], int pOut) {
+        resetMatchFinder(end - winStart);
+        for (int i = Math.max(winStart, start - winMax); i < start && i + MATCH_LEN_MIN <= end; i++) {
+            insert(buf, i);
+        }
+        int pEnd = pOut;
+        int from = start;
+        if (windowLog!=0 && end-winStart > winMax) {
+            int n = findLongMatches(buf, winStart, start, end);
+            for (int i=0; i<n; i++) {
+                pEnd = compressRange(buf, winStart, from, ldmPos[i], out, pEnd, ldmDist[i], ldmLen[i]);
+                from = ldmPos[i] + ldmLen[i];
+                for (int p = Math.max(ldmPos[i], from - winMax); p < from && p + MATCH_LEN_MIN <= end; p++) {
+                    insert(buf, p);
+                }
             }
-            bos.write(bytesLeft);
         }
-        bos.write(strAsBytes, litStart, litLen);
-        if (offset>0x7f) {
-            bos.write(0x80 | (offset & 0x7f));
-            bos.write((offset >>> 7) & 0xff);
+        pEnd = compressRange(buf, winStart, from, end, out, pEnd, 0, 0);
+        if (pEnd-pOut > storedLength(end-start)) {
+            // incompressible, a single literal run is smaller
+            pEnd = writeSequence(buf, start, end-start, 0, 0, out, pOut);
         }
-        else {
-            bos.write(offset & 0x7f);
+        return pEnd;
+    }
+
+    /**
+     * Compresses buf[start..end) with the parser of the level, the literals at the end go
+     * in one sequence with the match tailDist back of tailLen bytes (0 at the end of the input).
+     */
+    private int compressRange(byte buf[], int winStart, int start, int end, byte out[], int pOut, int tailDist, int tailLen) {
+        if (parser==OPTIMAL) {
+            return compressOptimal(buf, winStart, start, end, out, pOut, tailDist, tailLen);
         }
-        int bytesLeft=repLen-0xf;
-        if (bytesLeft>=0) {
-            while (bytesLeft>=0xff) {
-                bos.write(0xff);
-                bytesLeft-=0xff;
+        return compressGreedy(buf, winStart, start, end, out, pOut, tailDist, tailLen);
+    }
+
+    /**
+     * Long distance matching for the large window format: finds repeats in buf[start..end) of
+     * at least LDM_LEN bytes further back than the window, buf[winStart..start) included.
+     * Positions at multiples of LDM_LEN are stored by the rolling hash of the LDM_LEN bytes that
+     * follow, and the rolling hash of every position is looked up. A repeat of 2 * LDM_LEN bytes
+     * always contains a stored chunk. The matches are left in ldmPos/ldmLen/ldmDist, returns
+     * their number.
+     */
+    private int findLongMatches(byte buf[], int winStart, int start, int end) {
+        if (end-start < LDM_LEN || end-winStart < 2*LDM_LEN) {
+            return 0;
+        }
+        int hashLog = LDM_HASH_LOG_MIN;
+        while (hashLog < LDM_HASH_LOG_MAX && (1 << hashLog) < (end-winStart) / LDM_LEN) {
+            hashLog++;
+        }
+        if (ldmTable==null || ldmTable.length < 1 << hashLog) {
+            ldmTable = new int[1 << hashLog];
+            ldmPos = new int[64];
+            ldmLen = new int[64];
+            ldmDist = new int[64];
+        }
+        Arrays.fill(ldmTable, 0, 1 << hashLog, -1);
+        int shift = 32 - hashLog;
+        int h = 0;
+        for (int i=winStart; i<winStart+LDM_LEN; i++) {
+            h = h * LDM_PRIME + (buf[i] & 0xff);
+        }
+        int n = 0;
+        int next = start; // end of the last match
+        for (int p=winStart; ; ) {
+            int slot = (h * 0x9E3779B1) >>> shift;
+            int cand = ldmTable[slot];
+            if (p >= next && cand >= 0 && p-cand > winMax && equal(buf, cand, p, LDM_LEN)) {
+                int dist = p - cand;
+                int mStart = p;
+                while (mStart > next && mStart-dist > winStart && buf[mStart-1] == buf[mStart-1-dist]) {
+                    mStart--;
+                }
+                int mEnd = p + LDM_LEN;
+                while (mEnd < end && buf[mEnd] == buf[mEnd-dist]) {
+                    mEnd++;
+                }
+                if (n==ldmPos.length) {
+                    ldmPos = Arrays.copyOf(ldmPos, 2*n);
+                    ldmLen = Arrays.copyOf(ldmLen, 2*n);
+                    ldmDist = Arrays.copyOf(ldmDist, 2*n);
+                }
+                ldmPos[n] = mStart;
+                ldmLen[n] = mEnd - mStart;
+                ldmDist[n++] = dist;
+                next = mEnd;
+            }
+            if (((p-winStart) & (LDM_LEN-1)) == 0) {
+                ldmTable[slot] = p;
+            }
+            if (p + LDM_LEN >= end) {
+                break;
             }
-            bos.write(bytesLeft);
+            h = h * LDM_PRIME + (buf[p+LDM_LEN] & 0xff) - (buf[p] & 0xff) * LDM_PRIME_POW;
+            p++;
         }
+        return n;
     }
 
-    private int byteArrayLastIndexOf(byte str[], int strStart, int strLen, int prefixStart, int prefixLen) {
+    private static boolean equal(byte buf[], int a, int b, int len) {
+        for (int i=0; i<len; i++) {
+            if (buf[a+i]!=buf[b+i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
-        if (strLen==0) {
-            return -1;
+    private static int pow(int x, int n) {
+        int r = 1;
+        while (n-- > 0) {
+            r *= x;
         }
-        strStart--;
+        return r;
+    }
 
-        int matchLen=1;
-        int lastByte = prefixStart+prefixLen-1;
-        int n=strLen;
+    /**
+     * Size of a block written as a single literal run.
+     */
+    static int storedLength(int len) {
+        return 2 + len + (len < 0xf ? 0 : (len - 0xf) / 0xff + 1);
+    }
 
-        startSearchForLastByte:
-        while (true) {
-            // find last byte
-            while (n!=0 && str[strStart + n] != str[lastByte]) {
-                n--;
+    /**
+     * Greedy and lazy parsing. After SKIP_TRIGGER positions without a match the step to the
+     * next position grows, so incompressible data is passed over quickly.
+     */
+    private int compressGreedy(byte buf[], int winStart, int start, int end, byte out[], int pOut, int tailDist, int tailLen) {
+        int anchor = start;
+        int ptr = start;
+        int misses = 0;
+        while (ptr + MATCH_LEN_MIN <= end) {
+            int matchLen = findMatch(buf, winStart, ptr, end);
+            if (matchLen==0) {
+                ptr += 1 + (misses++ >>> SKIP_TRIGGER);
+                continue;
             }
-            if (n==0)
-                break;
+            misses = 0;
+            int dist = matchDist;
+            int next = ptr + 1; // next position to insert
+            if (parser==LAZY) {
+                // emit a literal instead if the next position has a better match
+                while (matchLen < niceLen && ptr + 1 + MATCH_LEN_MIN <= end) {
+                    int len = findMatch(buf, winStart, ptr+1, end);
+                    next = ptr + 2;
+                    if (len > matchLen || (len == matchLen && offsetSize(matchDist) < offsetSize(dist))) {
+                        ptr++;
+                        matchLen = len;
+                        dist = matchDist;
+                    }
+                    else {
+                        break;
+                    }
+                }
+            }
+            pOut = writeSequence(buf, anchor, ptr-anchor, dist, matchLen-MATCH_LEN_MIN, out, pOut);
+            int matchEnd = ptr + matchLen;
+            for (; next < matchEnd && next + MATCH_LEN_MIN <= end; next++) {
+                insert(buf, next);
+            }
+            ptr = matchEnd;
+            anchor = ptr;
+        }
+        if (anchor<end || tailLen!=0) {
+            pOut = writeSequence(buf, anchor, end-anchor, tailDist, tailLen==0 ? 0 : tailLen-MATCH_LEN_MIN, out, pOut);
+        }
+        return pOut;
+    }
+
+    /**
+     * Optimal parsing: for OPT_CHUNK positions at a time find the sequence of literals and
+     * matches with the lowest encoded size, counting token, extra length and offset bytes.
+     * A match of niceLen or longer ends the range and is taken as is.
+     */
+    private int compressOptimal(byte buf[], int winStart, int start, int end, byte out[], int pOut, int tailDist, int tailLen) {
+        if (price==null) {
+            price = new int[OPT_CHUNK + 1];
+            litRun = new int[OPT_CHUNK + 1];
+            fromLen = new int[OPT_CHUNK + 1];
+            fromDist = new int[OPT_CHUNK + 1];
+        }
+        int anchor = start;
+        int ptr = start;
+        while (ptr + MATCH_LEN_MIN <= end) {
+            int n = Math.min(OPT_CHUNK, end - ptr);
+            price[0] = 0;
+            litRun[0] = ptr - anchor;
+            Arrays.fill(price, 1, n + 1, Integer.MAX_VALUE);
+            int last = n;
+            int longLen = 0;
+            int longDist = 0;
+            for (int i=0; i<n; i++) {
+                int lits = litRun[i] + 1;
+                int cost = price[i] + 1 + (lits >= 0xf && (lits - 0xf) % 0xff == 0 ? 1 : 0);
+                if (cost < price[i+1]) {
+                    price[i+1] = cost;
+                    litRun[i+1] = lits;
+                    fromLen[i+1] = 0;
+                }
+                if (ptr + i + MATCH_LEN_MIN > end) {
+                    continue;
+                }
+                int m = findMatches(buf, winStart, ptr + i, end);
+                if (m==0) {
+                    continue;
+                }
+                if (matchLens[m-1] >= niceLen) {
+                    last = i;
+                    longLen = matchLens[m-1];
+                    longDist = matchDists[m-1];
+                    break;
+                }
+                // every length up to matchLens[k] can use the nearest candidate k that reaches it
+                int len = MATCH_LEN_MIN;
+                for (int k=0; k<m; k++) {
+                    int dist = matchDists[k];
+                    int offsetCost = offsetSize(dist);
+                    len = Math.max(len, MATCH_LEN_MIN - 1 + offsetCost);
+                    int maxLen = Math.min(matchLens[k], n - i);
+                    for (; len <= maxLen; len++) {
+                        int rep = len - MATCH_LEN_MIN;
+                        cost = price[i] + 1 + offsetCost + (rep < 0xf ? 0 : (rep - 0xf) / 0xff + 1);
+                        if (cost < price[i+len]) {
+                            price[i+len] = cost;
+                            litRun[i+len] = 0;
+                            fromLen[i+len] = len;
+                            fromDist[i+len] = dist;
+                        }
+                    }
+                }
+            }
+            // walk back from the end of the range, marking the chosen matches
+            int i = last;
+            while (i > 0) {
+                int len = fromLen[i];
+                if (len==0) {
+                    i--;
+                }
+                else {
+                    litRun[i - len] = -i; // chosen match from i - len to i
+                    i -= len;
+                }
+            }
+            for (i=0; i<last; i++) {
+                if (litRun[i] < 0) {
+                    int matchEnd = -litRun[i];
+                    pOut = writeSequence(buf, anchor, ptr+i-anchor, fromDist[matchEnd], matchEnd-i-MATCH_LEN_MIN, out, pOut);
+                    anchor = ptr + matchEnd;
+                    i = matchEnd - 1;
+                }
+            }
+            if (longLen!=0) {
+                pOut = writeSequence(buf, anchor, ptr+last-anchor, longDist, longLen-MATCH_LEN_MIN, out, pOut);
+                int matchEnd = ptr + last + longLen;
+                for (int p = ptr + last + 1; p < matchEnd && p + MATCH_LEN_MIN <= end; p++) {
+                    insert(buf, p);
+                }
+                anchor = matchEnd;
+                ptr = matchEnd;
+            }
+            else {
+                ptr += n;
+            }
+        }
+        if (anchor<end || tailLen!=0) {
+            pOut = writeSequence(buf, anchor, end-anchor, tailDist, tailLen==0 ? 0 : tailLen-MATCH_LEN_MIN, out, pOut);
+        }
+        return pOut;
+    }
+
+    private void resetMatchFinder(int len) {
+        int hashLog = HASH_LOG_MIN;
+        while (hashLog < HASH_LOG_MAX && (1 << hashLog) < len) {
+            hashLog++;
+        }
+        hashShift = 32 - hashLog;
+        Arrays.fill(head, 0, 1 << hashLog, -1);
+    }
+
+    private int hash(byte buf[], int p) {
+        return hash(buf, p, hashShift);
+    }
+
+    static int hash(byte buf[], int p, int shift) {
+        int v = (buf[p] & 0xff) | (buf[p+1] & 0xff) << 8 | (buf[p+2] & 0xff) << 16;
+        return (v * 0x9E3779B1) >>> shift;
+    }
+
+    private void insert(byte buf[], int p) {
+        int h = hash(buf, p);
+        chain[p & chainMask] = head[h];
+        head[h] = p;
+    }
+
+    /**
+     * Returns the length of the longest match found for position p (0 if there is no usable
+     * match) and leaves its distance in matchDist. Position p is inserted in the hash chain.
+     */
+    private int findMatch(byte buf[], int winStart, int p, int end) {
+        int n = findMatches(buf, winStart, p, end);
+        // every offset byte after the first needs one more matching byte to gain anything
+        while (n>0 && matchLens[n-1] < MATCH_LEN_MIN - 1 + offsetSize(matchDists[n-1])) {
             n--;
-            // will the rest match?
-            while (n!=0 && matchLen!=prefixLen) {
-                if (str[strStart + n] != str[lastByte - matchLen]) {
-                    n+=matchLen-1;
-                    matchLen=1;
-                    continue startSearchForLastByte;
+        }
+        if (n==0) {
+            return 0;
+        }
+        matchDist = matchDists[n-1];
+        return matchLens[n-1];
+    }
+
+    private int offsetSize(int offset) {
+        if (offset<=0x7f) {
+            return 1;
+        }
+        if (windowLog==0) {
+            return 2;
+        }
+        return offset<=0x3fff ? 2 : offset<=0x1fffff ? 3 : 4;
+    }
+
+    /**
+     * Walks the hash chain for position p and stores every candidate that is longer than
+     * the ones before it in matchLens/matchDists, returns the number of candidates stored.
+     * Position p is inserted in the hash chain.
+     */
+    private int findMatches(byte buf[], int winStart, int p, int end) {
+        int h = hash(buf, p);
+        int cand = head[h];
+        chain[p & chainMask] = cand;
+        head[h] = p;
+
+        int minPos = Math.max(winStart, p - winMax);
+        int maxLen = end - p;
+        int bestLen = MATCH_LEN_MIN - 1;
+        int n = 0;
+        int depth = chainDepth;
+        boolean inDict = false;
+        while (depth > 0) {
+            if (cand < minPos) {
+                if (dict == null || inDict) {
+                    break;
                 }
-                matchLen++;
-                n--;
+                // continue with the dictionary, it precedes the input in buf
+                inDict = true;
+                cand = dict.head[hash(buf, p, LZVDictionary.HASH_SHIFT)];
+                minPos = Math.max(0, p - winMax);
+                continue;
             }
-            if (matchLen == prefixLen) {
-                return strStart + n + 1;
+            depth--;
+            if (buf[cand + bestLen] == buf[p + bestLen]) {
+                int len = 0;
+                while (len < maxLen && buf[cand + len] == buf[p + len]) {
+                    len++;
+                }
+                if (len > bestLen) {
+                    bestLen = len;
+                    matchLens[n] = len;
+                    matchDists[n++] = p - cand;
+                    if (len >= niceLen || len == maxLen) {
+                        break;
+                    }
+                }
+            }
+            cand = inDict ? dict.chain[cand] : chain[cand & chainMask];
+        }
+        return n;
+    }
+
+    private int writeSequence(byte strAsBytes[], int litStart, int litLen, int offset, int repLen, byte out[], int pOut) {
+        int token = litLen>=0xf ? 0xf0 : (litLen<<4);
+        token |= repLen>=0xf ? 0xf : repLen;
+        out[pOut++] = (byte)token;
+        if ((litLen-0xf)>=0) {
+            int bytesLeft=litLen-0xf;
+            while (bytesLeft>=0xff) {
+                out[pOut++] = (byte)0xff;
+                bytesLeft-=0xff;
+            }
+            out[pOut++] = (byte)bytesLeft;
+        }
+        System.arraycopy(strAsBytes, litStart, out, pOut, litLen);
+        pOut += litLen;
+        if (offset>0x7f && windowLog!=0) {
+            while (offset>0x7f) {
+                out[pOut++] = (byte)(0x80 | (offset & 0x7f));
+                offset >>>= 7;
+            }
+            out[pOut++] = (byte)offset;
+        }
+        else if (offset>0x7f) {
+            out[pOut++] = (byte)(0x80 | (offset & 0x7f));
+            out[pOut++] = (byte)((offset >>> 7) & 0xff);
+        }
+        else {
+            out[pOut++] = (byte)(offset & 0x7f);
+        }
+        int bytesLeft=repLen-0xf;
+        if (bytesLeft>=0) {
+            while (bytesLeft>=0xff) {
+                out[pOut++] = (byte)0xff;
+                bytesLeft-=0xff;
             }
+            out[pOut++] = (byte)bytesLeft;
         }
-        return -1;
+        return pOut;
     }
 
     public static void main(String[] args) throws IOException {
@@ -0,0 +1,142 @@
+package nl.v4you.compression;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Preset dictionary for LZV: bytes that act as window content in front of the input, so
+ * small records can refer to common element names and namespaces from their first byte.
+ * The hash chains over the dictionary are built once and shared by all compress calls,
+ * instances are immutable and can be used from several threads.
+ */
+public class LZVDictionary {
+    static final int HASH_LOG = 16;
+    static final int HASH_SHIFT = 32 - HASH_LOG;
+
+    // trainer: score segments by the frequency of the k-grams they contain
+    private static final int KGRAM = 8;
+    private static final int SEGMENT = 48;
+    private static final int FREQ_LOG = 20;
+
+    private final int id;
+    final byte data[];
+    final int head[];
+    final int chain[];
+
+    /**
+     * The id is written in front of every stream compressed with this dictionary. Only the
+     * last 32750 bytes of data are used, content closer to the end is cheaper to refer to.
+     */
+    public LZVDictionary(int id, byte data[]) {
+        if (id<0) {
+            throw new IllegalArgumentException("id must be >= 0");
+        }
+        this.id = id;
+        this.data = data.length<=LZV.WIN_MAX ? data.clone() : Arrays.copyOfRange(data, data.length-LZV.WIN_MAX, data.length);
+        head = new int[1 << HASH_LOG];
+        chain = new int[this.data.length];
+        Arrays.fill(head, -1);
+        for (int i=0; i+2<this.data.length; i++) {
+            int h = LZV.hash(this.data, i, HASH_SHIFT);
+            chain[i] = head[h];
+            head[h] = i;
+        }
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    public int size() {
+        return data.length;
+    }
+
+    /**
+     * Builds a dictionary of at most size bytes from sample records. The samples are divided
+     * in epochs and from each epoch the segment with the most frequent (and not yet used)
+     * k-grams is taken. Segments are placed from the end of the dictionary backwards.
+     */
+    public static LZVDictionary train(int id, List<byte[]> samples, int size) {
+        size = Math.min(size, LZV.WIN_MAX);
+        int total = 0;
+        for (byte s[] : samples) {
+            total += s.length;
+        }
+        byte all[] = new byte[total];
+        int p = 0;
+        for (byte s[] : samples) {
+            System.arraycopy(s, 0, all, p, s.length);
+            p += s.length;
+        }
+
+        int freq[] = new int[1 << FREQ_LOG];
+        for (int i=0; i+KGRAM<=total; i++) {
+            freq[kgramHash(all, i)]++;
+        }
+
+        byte dict[] = new byte[size];
+        int dictStart = size;
+        int epochs = Math.max(1, size / SEGMENT);
+        int epochSize = Math.max(SEGMENT, total / epochs);
+        int inSegment[] = new int[1 << FREQ_LOG];
+        for (int epoch=0; epoch*epochSize<total && dictStart>0; epoch++) {
+            int begin = epoch * epochSize;
+            int end = Math.min(total, begin + epochSize);
+            int best = bestSegment(all, begin, end, freq, inSegment);
+            if (best<0) {
+                continue;
+            }
+            int len = Math.min(Math.min(SEGMENT, total-best), dictStart);
+            dictStart -= len;
+            System.arraycopy(all, best, dict, dictStart, len);
+            for (int i=best; i+KGRAM<=best+len; i++) {
+                freq[kgramHash(all, i)] = 0;
+            }
+        }
+        return new LZVDictionary(id, Arrays.copyOfRange(dict, dictStart, size));
+    }
+
+    /**
+     * Returns the start of the segment in all[begin..end) with the highest sum of k-gram
+     * frequencies, each k-gram counted once per segment. Returns -1 if nothing scores.
+     */
+    private static int bestSegment(byte all[], int begin, int end, int freq[], int inSegment[]) {
+        int kgrams = SEGMENT - KGRAM + 1;
+        int bestStart = -1;
+        int bestScore = 0;
+        int score = 0;
+        int first = begin;
+        for (int i=begin; i+KGRAM<=end; i++) {
+            int h = kgramHash(all, i);
+            if (inSegment[h]++==0) {
+                score += freq[h];
+            }
+            if (i-first+1>kgrams) {
+                int hFirst = kgramHash(all, first++);
+                if (--inSegment[hFirst]==0) {
+                    score -= freq[hFirst];
+                }
+            }
+            if (score>bestScore) {
+                bestScore = score;
+                bestStart = first;
+            }
+        }
+        for (int i=first; i+KGRAM<=end; i++) {
+            inSegment[kgramHash(all, i)] = 0;
+        }
+        return bestStart;
+    }
+
+    private static int kgramHash(byte b[], int p) {
+        long v = 0;
+        for (int i=0; i<KGRAM; i++) {
+            v = (v << 8) | (b[p+i] & 0xff);
+        }
+        return (int)((v * 0x9E3779B97F4A7C15L) >>> (64 - FREQ_LOG));
+    }
+}
@@ -0,0 +1,80 @@
+package nl.v4you.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// <magic "LZVF"> <version> <flags> <block_size>
+// <uncompressed_length> <compressed_length> <compressed data> [crc32 of the uncompressed data]
+// ...
+// <0>
+
+// flags: bit 0 = every block is followed by a checksum
+//        bit 1 = blocks are independent, otherwise matches may refer to the previous 32 KB
+//        bit 2 = the end marker is followed by a block index (see LZVRandomAccess):
+//                <first block offset> <block count> (<uncompressed length> <block length>)*
+//                <index length, 4 bytes> <magic "LZVI">
+//                block length counts all bytes of a block, from its uncompressed length to its crc
+
+// block data holds LZV sequences without the leading length, all lengths are varints
+// a compressed length of 0 marks a stored block: the uncompressed data follows as is
+
+final class LZVFrame {
+    static final byte MAGIC[] = { 'L', 'Z', 'V', 'F' };
+    static final int VERSION = 1;
+
+    static final int FLAG_CHECKSUM = 1;
+    static final int FLAG_INDEPENDENT = 2;
+    static final int FLAG_INDEX = 4;
+
+    static final byte INDEX_MAGIC[] = { 'L', 'Z', 'V', 'I' };
+
+    static final int BLOCK_SIZE_MIN = 1 << 10;
+    static final int BLOCK_SIZE_MAX = 1 << 24;
+    static final int BLOCK_SIZE_DEFAULT = 1 << 17;
+
+    int flags;
+    int blockSize;
+
+    private LZVFrame() {
+    }
+
+    static void checkBlockSize(int blockSize) {
+        if (blockSize<BLOCK_SIZE_MIN || blockSize>BLOCK_SIZE_MAX) {
+            throw new IllegalArgumentException("blockSize must be between " + BLOCK_SIZE_MIN + " and " + BLOCK_SIZE_MAX);
+        }
+    }
+
+    /**
+     * Writes the frame header, returns its length.
+     */
+    static int writeHeader(OutputStream os, int flags, int blockSize) throws IOException {
+        byte b[] = new byte[MAGIC.length + 2 + 5];
+        System.arraycopy(MAGIC, 0, b, 0, MAGIC.length);
+        int p = MAGIC.length;
+        b[p++] = VERSION;
+        b[p++] = (byte)flags;
+        p = StreamIO.writeVarInt(blockSize, b, p);
+        os.write(b, 0, p);
+        return p;
+    }
+
+    static LZVFrame readHeader(InputStream is) throws IOException {
+        for (int i=0; i<MAGIC.length; i++) {
+            if (is.read()!=MAGIC[i]) {
+                throw new IOException("LZV: unknown frame header");
+            }
+        }
+        int version = is.read();
+        if (version!=VERSION) {
+            throw new IOException("LZV: unknown frame version " + version);
+        }
+        LZVFrame frame = new LZVFrame();
+        frame.flags = StreamIO.readByte(is);
+        frame.blockSize = StreamIO.readVarInt(is);
+        if (frame.blockSize<BLOCK_SIZE_MIN || frame.blockSize>BLOCK_SIZE_MAX) {
+            throw new IOException("LZV: invalid block size " + frame.blockSize);
+        }
+        return frame;
+    }
+}
@@ -0,0 +1,104 @@
+package nl.v4you.compression;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * Reads an LZV frame written by LZVOutputStream, decompressing block by block.
+ */
+public class LZVInputStream extends InputStream {
+    private final InputStream in;
+    private final LZV lzv = new LZV();
+    private final CRC32 crc;
+    private final boolean independent;
+    private final int blockSize;
+    private final byte buf[]; // window followed by the current block
+    private final byte compressed[];
+    private int pos = 0;
+    private int lim = 0;
+    private boolean eof = false;
+
+    public LZVInputStream(InputStream in) throws IOException {
+        this.in = in;
+        LZVFrame frame = LZVFrame.readHeader(in);
+        blockSize = frame.blockSize;
+        crc = (frame.flags & LZVFrame.FLAG_CHECKSUM)!=0 ? new CRC32() : null;
+        independent = (frame.flags & LZVFrame.FLAG_INDEPENDENT)!=0;
+        buf = new byte[LZV.WIN_MAX + blockSize];
+        compressed = new byte[LZV.maxCompressedLength(blockSize)];
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (pos==lim && !nextBlock()) {
+            return -1;
+        }
+        return buf[pos++] & 0xff;
+    }
+
+    @Override
+    public int read(byte b[], int off, int len) throws IOException {
+        if (len==0) {
+            return 0;
+        }
+        if (pos==lim && !nextBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, lim-pos);
+        System.arraycopy(buf, pos, b, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public int available() {
+        return lim - pos;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (eof) {
+            return false;
+        }
+        int len = StreamIO.readVarInt(in);
+        if (len==0) {
+            eof = true;
+            return false;
+        }
+        int cLen = StreamIO.readVarInt(in);
+        if (len>blockSize || cLen>compressed.length) {
+            throw new IOException("LZV: corrupt block header");
+        }
+        int keep = independent ? 0 : Math.min(lim, LZV.WIN_MAX);
+        System.arraycopy(buf, lim-keep, buf, 0, keep);
+        if (cLen==0) {
+            StreamIO.readFully(in, buf, keep, len);
+        }
+        else {
+            StreamIO.readFully(in, compressed, 0, cLen);
+            try {
+                if (lzv.decompressBlock(compressed, 0, cLen, buf, 0, keep, len)!=cLen) {
+                    throw new IOException("LZV: corrupt block");
+                }
+            }
+            catch (CompressionException | RuntimeException e) {
+                throw new IOException("LZV: corrupt block", e);
+            }
+        }
+        if (crc!=null) {
+            crc.reset();
+            crc.update(buf, keep, len);
+            if (StreamIO.readInt(in)!=(int)crc.getValue()) {
+                throw new IOException("LZV: checksum mismatch");
+            }
+        }
+        pos = keep;
+        lim = keep + len;
+        return true;
+    }
+}
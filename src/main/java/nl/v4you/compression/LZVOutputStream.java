@@ -0,0 +1,178 @@
+package nl.v4you.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * Writes an LZV frame (see LZVFrame), compressing block by block. The last 32 KB of
+ * the previous block are kept as window, so only one block and its compressed form
+ * are held in memory. An indexed frame has independent blocks and a block index at the
+ * end, so LZVRandomAccess can decompress any range by reading only the blocks covering it.
+ */
+public class LZVOutputStream extends OutputStream {
+    private final OutputStream out;
+    private final LZV lzv;
+    private final CRC32 crc;
+    private final byte buf[]; // window followed by the current block
+    private final byte compressed[];
+    private final byte blockHeader[] = new byte[10];
+    private final int blockSize;
+    private final ByteArrayOutputStream index; // null if not indexed
+    private final int headerLen;
+    private int blocks = 0;
+    private int winLen = 0;
+    private int pos = 0;
+    private boolean finished = false;
+
+    public LZVOutputStream(OutputStream out) throws IOException {
+        this(out, LZVFrame.BLOCK_SIZE_DEFAULT, true);
+    }
+
+    public LZVOutputStream(OutputStream out, int blockSize, boolean checksum) throws IOException {
+        this(out, blockSize, checksum, LZV.LEVEL_DEFAULT);
+    }
+
+    public LZVOutputStream(OutputStream out, int blockSize, boolean checksum, int level) throws IOException {
+        this(out, blockSize, checksum, level, false);
+    }
+
+    public LZVOutputStream(OutputStream out, int blockSize, boolean checksum, int level, boolean indexed) throws IOException {
+        LZVFrame.checkBlockSize(blockSize);
+        this.lzv = new LZV(level);
+        this.out = out;
+        this.blockSize = blockSize;
+        this.crc = checksum ? new CRC32() : null;
+        this.index = indexed ? new ByteArrayOutputStream() : null;
+        buf = new byte[(indexed ? 0 : LZV.WIN_MAX) + blockSize];
+        compressed = new byte[LZV.maxCompressedLength(blockSize)];
+        int flags = (checksum ? LZVFrame.FLAG_CHECKSUM : 0) | (indexed ? LZVFrame.FLAG_INDEPENDENT | LZVFrame.FLAG_INDEX : 0);
+        headerLen = LZVFrame.writeHeader(out, flags, blockSize);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        buf[pos++] = (byte)b;
+        if (pos-winLen==blockSize) {
+            writeBlock();
+        }
+    }
+
+    @Override
+    public void write(byte b[], int off, int len) throws IOException {
+        ensureOpen();
+        while (len>0) {
+            int n = Math.min(len, blockSize - (pos-winLen));
+            System.arraycopy(b, off, buf, pos, n);
+            pos += n;
+            off += n;
+            len -= n;
+            if (pos-winLen==blockSize) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Writes the remaining bytes of src, for example a mapped file region.
+     */
+    public void write(ByteBuffer src) throws IOException {
+        ensureOpen();
+        while (src.hasRemaining()) {
+            int n = Math.min(src.remaining(), blockSize - (pos-winLen));
+            src.get(buf, pos, n);
+            pos += n;
+            if (pos-winLen==blockSize) {
+                writeBlock();
+            }
+        }
+    }
+
+    /**
+     * Compresses the buffered bytes as a (short) block and flushes the underlying stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        writeBlock();
+        out.flush();
+    }
+
+    /**
+     * Writes the remaining data and the end marker without closing the underlying stream.
+     */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBlock();
+        out.write(0);
+        if (index!=null) {
+            writeIndex();
+        }
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (finished) {
+            throw new IOException("LZV: stream finished");
+        }
+    }
+
+    private void writeIndex() throws IOException {
+        byte b[] = new byte[10];
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(index.size() + 10);
+        bos.write(b, 0, StreamIO.writeVarInt(headerLen, b, 0));
+        bos.write(b, 0, StreamIO.writeVarInt(blocks, b, 0));
+        index.writeTo(bos);
+        bos.write(b, 0, StreamIO.writeInt(bos.size(), b, 0));
+        bos.write(LZVFrame.INDEX_MAGIC);
+        bos.writeTo(out);
+    }
+
+    private void writeBlock() throws IOException {
+        int len = pos - winLen;
+        if (len==0) {
+            return;
+        }
+        int cLen = lzv.compressBlock(buf, 0, winLen, pos, compressed, 0);
+        boolean stored = cLen>=len;
+        int p = StreamIO.writeVarInt(len, blockHeader, 0);
+        p = StreamIO.writeVarInt(stored ? 0 : cLen, blockHeader, p);
+        out.write(blockHeader, 0, p);
+        if (stored) {
+            out.write(buf, winLen, len);
+        }
+        else {
+            out.write(compressed, 0, cLen);
+        }
+        if (crc!=null) {
+            crc.reset();
+            crc.update(buf, winLen, len);
+            out.write(blockHeader, 0, StreamIO.writeInt((int)crc.getValue(), blockHeader, 0));
+        }
+        if (index!=null) {
+            int recordLen = p + (stored ? len : cLen) + (crc!=null ? 4 : 0);
+            index.write(blockHeader, 0, StreamIO.writeVarInt(len, blockHeader, 0));
+            index.write(blockHeader, 0, StreamIO.writeVarInt(recordLen, blockHeader, 0));
+            blocks++;
+        }
+        int keep = index!=null ? 0 : Math.min(pos, LZV.WIN_MAX);
+        System.arraycopy(buf, pos-keep, buf, 0, keep);
+        winLen = keep;
+        pos = keep;
+    }
+}
@@ -0,0 +1,228 @@
+package nl.v4you.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32;
+
+/**
+ * Block-parallel LZV compression. Input is split into independent blocks that are
+ * compressed concurrently and written in order as an LZV frame (see LZVFrame) with
+ * the independent flag set, so LZVInputStream can read the result as well.
+ * Frames with independent blocks are also decompressed in parallel.
+ */
+public class LZVParallel {
+    private final BlockParallel parallel;
+    private final int blockSize;
+    private final boolean checksum;
+    private final int level;
+
+    private final ThreadLocal<LZV> lzv = new ThreadLocal<LZV>() {
+        @Override
+        protected LZV initialValue() {
+            return new LZV(level);
+        }
+    };
+
+    public LZVParallel() {
+        this(BlockParallel.POOL, LZVFrame.BLOCK_SIZE_DEFAULT, true);
+    }
+
+    public LZVParallel(Executor executor, int blockSize, boolean checksum) {
+        this(executor, blockSize, checksum, LZV.LEVEL_DEFAULT);
+    }
+
+    public LZVParallel(Executor executor, int blockSize, boolean checksum, int level) {
+        LZVFrame.checkBlockSize(blockSize);
+        LZV.checkLevel(level);
+        this.level = level;
+        this.parallel = new BlockParallel(executor, "LZV");
+        this.blockSize = blockSize;
+        this.checksum = checksum;
+    }
+
+    public byte[] compress(byte src[]) {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(src.length / 2);
+        try {
+            compress(src, bos);
+        }
+        catch (IOException e) {
+            throw new IllegalStateException(e); // not thrown by ByteArrayOutputStream
+        }
+        return bos.toByteArray();
+    }
+
+    public void compress(byte src[], OutputStream os) throws IOException {
+        LZVFrame.writeHeader(os, flags(), blockSize);
+        BlockParallel.OrderedWriter writer = parallel.writer(os);
+        for (int off=0; off<src.length; off+=blockSize) {
+            writer.add(new Compressor(src, off, Math.min(blockSize, src.length-off)));
+        }
+        writer.finish();
+        os.write(0);
+    }
+
+    /**
+     * Compresses the input stream with at most a few blocks per thread in memory.
+     */
+    public void compress(InputStream is, OutputStream os) throws IOException {
+        LZVFrame.writeHeader(os, flags(), blockSize);
+        BlockParallel.OrderedWriter writer = parallel.writer(os);
+        while (true) {
+            byte block[] = new byte[blockSize];
+            int len = 0;
+            int n;
+            while (len<blockSize && (n=is.read(block, len, blockSize-len))>=0) {
+                len += n;
+            }
+            if (len==0) {
+                break;
+            }
+            writer.add(new Compressor(block, 0, len));
+            if (len<blockSize) {
+                break;
+            }
+        }
+        writer.finish();
+        os.write(0);
+    }
+
+    public byte[] decompress(byte frame[]) throws IOException {
+        ByteArrayInputStream is = new ByteArrayInputStream(frame);
+        LZVFrame header = LZVFrame.readHeader(is);
+        if ((header.flags & LZVFrame.FLAG_INDEPENDENT)==0) {
+            return decompressSequential(frame);
+        }
+        boolean hasChecksum = (header.flags & LZVFrame.FLAG_CHECKSUM)!=0;
+        List<Decompressor> blocks = new ArrayList<>();
+        long total = 0;
+        while (true) {
+            int len = StreamIO.readVarInt(is);
+            if (len==0) {
+                break;
+            }
+            int cLen = StreamIO.readVarInt(is);
+            int off = frame.length - is.available();
+            int skip = (cLen==0 ? len : cLen) + (hasChecksum ? 4 : 0);
+            if (len>header.blockSize || skip>is.available()) {
+                throw new IOException("LZV: corrupt block header");
+            }
+            is.skip(skip);
+            blocks.add(new Decompressor(frame, off, cLen, (int)total, len, hasChecksum));
+            total += len;
+            if (total>Integer.MAX_VALUE) {
+                throw new IOException("LZV: frame too large for a byte array");
+            }
+        }
+        byte out[] = new byte[(int)total];
+        for (Decompressor d : blocks) {
+            d.out = out;
+        }
+        parallel.runAll(blocks);
+        return out;
+    }
+
+    private byte[] decompressSequential(byte frame[]) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        LZVInputStream is = new LZVInputStream(new ByteArrayInputStream(frame));
+        byte buf[] = new byte[blockSize];
+        int n;
+        while ((n=is.read(buf, 0, buf.length))>=0) {
+            bos.write(buf, 0, n);
+        }
+        return bos.toByteArray();
+    }
+
+    private int flags() {
+        return LZVFrame.FLAG_INDEPENDENT | (checksum ? LZVFrame.FLAG_CHECKSUM : 0);
+    }
+
+    private class Compressor implements Callable<byte[]> {
+        private final byte src[];
+        private final int off;
+        private final int len;
+
+        Compressor(byte src[], int off, int len) {
+            this.src = src;
+            this.off = off;
+            this.len = len;
+        }
+
+        /**
+         * Returns the complete block: lengths, compressed data and checksum.
+         */
+        @Override
+        public byte[] call() {
+            byte out[] = new byte[10 + LZV.maxCompressedLength(len) + 4];
+            int end = lzv.get().compressBlock(src, off, off, off+len, out, 10);
+            boolean stored = end-10>=len;
+            if (stored) {
+                System.arraycopy(src, off, out, 10, len);
+                end = 10 + len;
+            }
+            byte header[] = new byte[10];
+            int h = StreamIO.writeVarInt(len, header, 0);
+            h = StreamIO.writeVarInt(stored ? 0 : end-10, header, h);
+            System.arraycopy(header, 0, out, 10-h, h);
+            if (checksum) {
+                CRC32 crc = new CRC32();
+                crc.update(src, off, len);
+                end = StreamIO.writeInt((int)crc.getValue(), out, end);
+            }
+            return Arrays.copyOfRange(out, 10-h, end);
+        }
+    }
+
+    private class Decompressor implements Callable<byte[]> {
+        private final byte in[];
+        private final int inOff;
+        private final int inLen; // 0 for a stored block
+        private final int outOff;
+        private final int outLen;
+        private final boolean checksum;
+        byte out[];
+
+        Decompressor(byte in[], int inOff, int inLen, int outOff, int outLen, boolean checksum) {
+            this.in = in;
+            this.inOff = inOff;
+            this.inLen = inLen;
+            this.outOff = outOff;
+            this.outLen = outLen;
+            this.checksum = checksum;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            if (inLen==0) {
+                System.arraycopy(in, inOff, out, outOff, outLen);
+            }
+            else {
+                try {
+                    if (lzv.get().decompressBlock(in, inOff, inOff+inLen, out, outOff, outOff, outLen)!=inOff+inLen) {
+                        throw new IOException("LZV: corrupt block");
+                    }
+                }
+                catch (CompressionException | RuntimeException e) {
+                    throw new IOException("LZV: corrupt block", e);
+                }
+            }
+            if (checksum) {
+                CRC32 crc = new CRC32();
+                crc.update(out, outOff, outLen);
+                int p = inOff + (inLen==0 ? outLen : inLen);
+                int expected = ((in[p] & 0xff) << 24) | ((in[p+1] & 0xff) << 16) | ((in[p+2] & 0xff) << 8) | (in[p+3] & 0xff);
+                if (expected!=(int)crc.getValue()) {
+                    throw new IOException("LZV: checksum mismatch");
+                }
+            }
+            return null;
+        }
+    }
+}
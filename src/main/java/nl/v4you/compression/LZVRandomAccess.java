@@ -0,0 +1,176 @@
+package nl.v4you.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * Reads ranges of an indexed LZV frame (see LZVOutputStream) from a FileChannel. Only the
+ * blocks covering a range are read and decompressed, the last block is kept for the next
+ * read. Instances are not thread safe.
+ */
+public class LZVRandomAccess implements Closeable {
+    private final FileChannel ch;
+    private final LZV lzv = new LZV();
+    private final CRC32 crc;
+    private final long uOff[]; // uncompressed offset of every block, followed by the total length
+    private final long cOff[]; // offset of every block in the file, followed by the end of the last one
+    private final byte record[];
+    private final byte block[];
+    private int cached = -1; // block in block[]
+
+    public LZVRandomAccess(FileChannel ch) throws IOException {
+        this.ch = ch;
+        byte b[] = new byte[(int)Math.min(16, ch.size())];
+        readFully(b, b.length, 0);
+        LZVFrame frame = LZVFrame.readHeader(new ByteArrayInputStream(b));
+        if ((frame.flags & LZVFrame.FLAG_INDEX)==0 || (frame.flags & LZVFrame.FLAG_INDEPENDENT)==0) {
+            throw new IOException("LZV: frame has no block index");
+        }
+        crc = (frame.flags & LZVFrame.FLAG_CHECKSUM)!=0 ? new CRC32() : null;
+        block = new byte[frame.blockSize];
+        record = new byte[10 + LZV.maxCompressedLength(frame.blockSize) + 4];
+
+        // trailer: <index length> <magic>
+        long size = ch.size();
+        byte trailer[] = new byte[8];
+        if (size<trailer.length) {
+            throw new EOFException("LZV: unexpected end of frame");
+        }
+        readFully(trailer, trailer.length, size-trailer.length);
+        for (int i=0; i<LZVFrame.INDEX_MAGIC.length; i++) {
+            if (trailer[4+i]!=LZVFrame.INDEX_MAGIC[i]) {
+                throw new IOException("LZV: block index not found");
+            }
+        }
+        int indexLen = ((trailer[0] & 0xff) << 24) | ((trailer[1] & 0xff) << 16) | ((trailer[2] & 0xff) << 8) | (trailer[3] & 0xff);
+        if (indexLen<0 || indexLen>size-trailer.length) {
+            throw new IOException("LZV: corrupt block index");
+        }
+        byte index[] = new byte[indexLen];
+        readFully(index, indexLen, size-trailer.length-indexLen);
+        ByteArrayInputStream is = new ByteArrayInputStream(index);
+        long off = StreamIO.readVarInt(is);
+        int blocks = StreamIO.readVarInt(is);
+        if (blocks>indexLen/2) {
+            throw new IOException("LZV: corrupt block index");
+        }
+        uOff = new long[blocks+1];
+        cOff = new long[blocks+1];
+        cOff[0] = off;
+        for (int i=0; i<blocks; i++) {
+            int len = StreamIO.readVarInt(is);
+            int recordLen = StreamIO.readVarInt(is);
+            if (len>block.length || recordLen>record.length) {
+                throw new IOException("LZV: corrupt block index");
+            }
+            uOff[i+1] = uOff[i] + len;
+            cOff[i+1] = cOff[i] + recordLen;
+        }
+    }
+
+    /**
+     * Returns the uncompressed length of the frame.
+     */
+    public long length() {
+        return uOff[uOff.length-1];
+    }
+
+    public byte[] read(long pos, int len) throws IOException {
+        byte b[] = new byte[(int)Math.max(0, Math.min(len, length()-pos))];
+        read(pos, b, 0, b.length);
+        return b;
+    }
+
+    /**
+     * Reads up to len uncompressed bytes starting at pos into dst, returns the number of
+     * bytes read or -1 if pos is at or after the end.
+     */
+    public int read(long pos, byte dst[], int off, int len) throws IOException {
+        if (pos<0) {
+            throw new IllegalArgumentException("pos must be >= 0");
+        }
+        if (pos>=length()) {
+            return -1;
+        }
+        int i = Arrays.binarySearch(uOff, pos);
+        if (i<0) {
+            i = -i - 2;
+        }
+        while (i<uOff.length-1 && uOff[i+1]==pos) {
+            i++; // skip empty blocks
+        }
+        int n = 0;
+        while (n<len && i<uOff.length-1) {
+            loadBlock(i);
+            int from = (int)(pos + n - uOff[i]);
+            int k = (int)Math.min(len-n, uOff[i+1]-uOff[i]-from);
+            System.arraycopy(block, from, dst, off+n, k);
+            n += k;
+            i++;
+        }
+        return n;
+    }
+
+    @Override
+    public void close() throws IOException {
+        ch.close();
+    }
+
+    private void loadBlock(int i) throws IOException {
+        if (cached==i) {
+            return;
+        }
+        cached = -1;
+        int recordLen = (int)(cOff[i+1] - cOff[i]);
+        int len = (int)(uOff[i+1] - uOff[i]);
+        readFully(record, recordLen, cOff[i]);
+        ByteArrayInputStream is = new ByteArrayInputStream(record, 0, recordLen);
+        if (StreamIO.readVarInt(is)!=len) {
+            throw new IOException("LZV: corrupt block header");
+        }
+        int cLen = StreamIO.readVarInt(is);
+        int p = recordLen - is.available();
+        int dataLen = cLen==0 ? len : cLen;
+        if (p+dataLen+(crc!=null ? 4 : 0)!=recordLen) {
+            throw new IOException("LZV: corrupt block header");
+        }
+        if (cLen==0) {
+            System.arraycopy(record, p, block, 0, len);
+        }
+        else {
+            try {
+                if (lzv.decompressBlock(record, p, p+cLen, block, 0, 0, len)!=p+cLen) {
+                    throw new IOException("LZV: corrupt block");
+                }
+            }
+            catch (CompressionException | RuntimeException e) {
+                throw new IOException("LZV: corrupt block", e);
+            }
+        }
+        if (crc!=null) {
+            crc.reset();
+            crc.update(block, 0, len);
+            int q = p + dataLen;
+            int expected = ((record[q] & 0xff) << 24) | ((record[q+1] & 0xff) << 16) | ((record[q+2] & 0xff) << 8) | (record[q+3] & 0xff);
+            if (expected!=(int)crc.getValue()) {
+                throw new IOException("LZV: checksum mismatch");
+            }
+        }
+        cached = i;
+    }
+
+    private void readFully(byte b[], int len, long pos) throws IOException {
+        ByteBuffer bb = ByteBuffer.wrap(b, 0, len);
+        while (bb.hasRemaining()) {
+            if (ch.read(bb, pos + bb.position())<0) {
+                throw new EOFException("LZV: unexpected end of frame");
+            }
+        }
+    }
+}
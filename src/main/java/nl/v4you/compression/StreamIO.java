@@ -0,0 +1,68 @@
+package nl.v4you.compression;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Varints, big endian ints and full reads shared by the LZV and Huffman stream formats.
+ */
+final class StreamIO {
+    private StreamIO() {
+    }
+
+    static int writeVarInt(int v, byte b[], int p) {
+        while (v>0x7f) {
+            b[p++] = (byte)(0x80 | (v & 0x7f));
+            v >>>= 7;
+        }
+        b[p++] = (byte)v;
+        return p;
+    }
+
+    static int writeInt(int v, byte b[], int p) {
+        b[p++] = (byte)(v >>> 24);
+        b[p++] = (byte)(v >>> 16);
+        b[p++] = (byte)(v >>> 8);
+        b[p++] = (byte)v;
+        return p;
+    }
+
+    static int readByte(InputStream is) throws IOException {
+        int b = is.read();
+        if (b<0) {
+            throw new EOFException("unexpected end of stream");
+        }
+        return b;
+    }
+
+    static int readVarInt(InputStream is) throws IOException {
+        int v = 0;
+        int shift = 0;
+        int b = readByte(is);
+        while ((b & 0x80)!=0) {
+            if (shift>=28) {
+                throw new IOException("invalid varint");
+            }
+            v |= (b & 0x7f) << shift;
+            shift += 7;
+            b = readByte(is);
+        }
+        return v | (b << shift);
+    }
+
+    static int readInt(InputStream is) throws IOException {
+        return (readByte(is) << 24) | (readByte(is) << 16) | (readByte(is) << 8) | readByte(is);
+    }
+
+    static void readFully(InputStream is, byte b[], int off, int len) throws IOException {
+        while (len>0) {
+            int n = is.read(b, off, len);
+            if (n<0) {
+                throw new EOFException("unexpected end of stream");
+            }
+            off += n;
+            len -= n;
+        }
+    }
+}
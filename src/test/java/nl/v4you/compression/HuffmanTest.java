@@ -5,12 +5,24 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(JUnit4.class)
 public class HuffmanTest {
@@ -106,6 +118,337 @@ public class HuffmanTest {
         }
     }
 
+    @Test
+    public void testLongCodes() throws CompressionException {
+        // doubling frequencies give a Huffman tree 20 levels deep, codes are limited to 11 bits
+        ByteArrayOutputStream bao = new ByteArrayOutputStream();
+        for (int i=0; i<20; i++) {
+            for (int j=0; j<(1<<i); j++) {
+                bao.write('a'+i);
+            }
+        }
+        byte uncompressedBuf[] = bao.toByteArray();
+        for (int i=0; i<uncompressedBuf.length; i+=97) {
+            uncompressedBuf[i] = uncompressedBuf[uncompressedBuf.length-1-i];
+        }
+        Huffman h = new Huffman();
+        h.encode(uncompressedBuf, uncompressedBuf.length);
+        h.decode();
+        assertEquals(uncompressedBuf.length, h.getDecodedSize());
+        assertArrayEquals(uncompressedBuf, Arrays.copyOf(h.getDecodedBuf(), h.getDecodedSize()));
+    }
+
+    @Test
+    public void testStoredAbove256MB() throws CompressionException {
+        // 8 * inSize bits overflowed an int here, the stored block was copied into a 32 byte buffer
+        byte a[] = new byte[(256 << 20) + 1000];
+        for (int i=0; i<a.length; i++) {
+            a[i] = (byte)i;
+        }
+        Huffman h = new Huffman();
+        h.encode(a, a.length);
+        assertEquals(Huffman.MODE_UNCOMPRESSED, h.getEncodedBuf()[0]);
+        h.decode();
+        assertEquals(a.length, h.getDecodedSize());
+        byte b[] = h.getDecodedBuf();
+        for (int i=0; i<a.length; i+=4093) {
+            assertEquals(a[i], b[i]);
+        }
+        assertEquals(a[a.length-1], b[a.length-1]);
+    }
+
+    @Test
+    public void testRandomSizes() throws CompressionException {
+        Huffman h = new Huffman();
+        Random r = new Random(1);
+        for (int n=0; n<300; n++) {
+            byte uncompressedBuf[] = new byte[1 + r.nextInt(n<200 ? 100 : 20000)];
+            int range = 1 + r.nextInt(256);
+            for (int i=0; i<uncompressedBuf.length; i++) {
+                uncompressedBuf[i] = (byte)(n%3==0 ? r.nextInt(range) : r.nextInt(1 + r.nextInt(range)));
+            }
+            h.encode(uncompressedBuf, uncompressedBuf.length);
+            h.decode();
+            assertEquals(uncompressedBuf.length, h.getDecodedSize());
+            assertArrayEquals(uncompressedBuf, Arrays.copyOf(h.getDecodedBuf(), h.getDecodedSize()));
+        }
+    }
+
+    @Test
+    public void testMultiStream() throws CompressionException {
+        Huffman h = new Huffman();
+        Random r = new Random(2);
+        for (int len : new int[] { 4095, 4096, 4097, 4098, 4099, 100000 }) {
+            byte uncompressedBuf[] = new byte[len];
+            for (int i=0; i<len; i++) {
+                uncompressedBuf[i] = (byte)('a' + Math.min(25, (int)(-Math.log(r.nextDouble()) * 4)));
+            }
+            h.encode(uncompressedBuf, len);
+            assertEquals(len<4096 ? 2 : 3, h.getEncodedBuf()[0]);
+            h.decode();
+            assertEquals(len, h.getDecodedSize());
+            assertArrayEquals(uncompressedBuf, Arrays.copyOf(h.getDecodedBuf(), len));
+        }
+    }
+
+    private static byte[] mixed() {
+        Random r = new Random(5);
+        StringBuilder sb = new StringBuilder();
+        for (int part=0; part<3; part++) {
+            while (sb.length() < (2*part+1) * 100000) {
+                sb.append("<record id=\"").append(r.nextInt(100000)).append("\"><title>Title ").append(r.nextInt(1000)).append("</title></record>\n");
+            }
+            while (sb.length() < (2*part+2) * 100000) {
+                sb.append(Integer.toString(r.nextInt() & 0x7fffffff, 36));
+            }
+        }
+        return sb.toString().getBytes();
+    }
+
+    @Test
+    public void testStream() throws IOException, CompressionException {
+        byte a[] = mixed();
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HuffmanOutputStream os = new HuffmanOutputStream(bos, 1 << 14);
+        os.write(a, 0, 1000);
+        os.flush(); // short block
+        for (int i=1000; i<2000; i++) {
+            os.write(a[i]);
+        }
+        os.write(a, 2000, a.length-2000);
+        os.close();
+
+        Huffman h = new Huffman();
+        h.encode(a, a.length);
+        // tables per block beat one table for all
+        assertTrue(bos.size() < h.getEncodedSize());
+
+        HuffmanInputStream is = new HuffmanInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        byte b[] = new byte[a.length];
+        StreamIO.readFully(is, b, 0, b.length);
+        assertArrayEquals(a, b);
+        assertEquals(-1, is.read());
+    }
+
+    @Test
+    public void testStreamHeader() throws IOException {
+        // block size 16 MB + 1
+        byte header[] = { 'H', 'U', 'F', 'S', (byte)0x81, (byte)0x80, (byte)0x80, 0x08 };
+        try {
+            new HuffmanInputStream(new ByteArrayInputStream(header));
+            fail("invalid block size accepted");
+        }
+        catch (IOException e) {
+            assertEquals("Huffman: invalid block size " + ((1 << 24) + 1), e.getMessage());
+        }
+    }
+
+    @Test(expected = CompressionException.class)
+    public void testPreviousTableMissing() throws CompressionException {
+        byte a[] = mixed();
+        Huffman h = new Huffman();
+        h.encode(a, 0, 1000, false);
+        h.encode(a, 1000, 1000, true);
+        assertEquals(4, h.getEncodedBuf()[0]);
+        new Huffman().decode(h.getEncodedBuf(), 0, h.getEncodedSize());
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        byte a[] = mixed();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        HuffmanParallel huff = new HuffmanParallel(pool, 1 << 14);
+        byte c[] = huff.encode(a);
+        assertArrayEquals(a, huff.decode(c));
+        HuffmanInputStream is = new HuffmanInputStream(new ByteArrayInputStream(c));
+        byte b[] = new byte[a.length];
+        StreamIO.readFully(is, b, 0, b.length);
+        assertArrayEquals(a, b);
+        assertEquals(-1, is.read());
+
+        // blocks that reuse a table are decoded sequentially
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        HuffmanOutputStream os = new HuffmanOutputStream(bos, 1 << 14);
+        os.write(a);
+        os.close();
+        assertArrayEquals(a, huff.decode(bos.toByteArray()));
+        assertArrayEquals(new byte[0], huff.decode(huff.encode(new byte[0])));
+        pool.shutdown();
+    }
+
+    @Test
+    public void testStateless() throws Exception {
+        final byte a[] = mixed();
+        ForkJoinPool pool = new ForkJoinPool(4);
+        List<Future<Boolean>> futures = new ArrayList<>();
+        for (int t=0; t<8; t++) {
+            final int seed = t;
+            futures.add(pool.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws CompressionException {
+                    Random r = new Random(seed);
+                    byte enc[] = new byte[Huffman.maxEncodedLength(a.length) + 3];
+                    byte dec[] = new byte[a.length + 5];
+                    for (int i=0; i<200; i++) {
+                        int off = r.nextInt(a.length);
+                        int len = r.nextInt(Math.min(a.length-off, i<100 ? 100 : 20000) + 1);
+                        int n = Huffman.encode(a, off, len, enc, 3);
+                        assertEquals(len, Huffman.decodedLength(enc, 3));
+                        assertEquals(len, Huffman.decode(enc, 3, n, dec, 5));
+                        assertArrayEquals(Arrays.copyOfRange(a, off, off+len), Arrays.copyOfRange(dec, 5, 5+len));
+                    }
+                    return true;
+                }
+            }));
+        }
+        for (Future<Boolean> f : futures) {
+            assertTrue(f.get());
+        }
+        pool.shutdown();
+    }
+
+    @Test
+    public void testLegacyLongCodes() throws CompressionException {
+        // mode 2 block with code lengths 1..13,13 for 'a'..'n', as written before codes were limited
+        byte src[] = new byte[64];
+        BitWriter w = new BitWriter();
+        w.reset(src, 0);
+        w.writeBits(Huffman.MODE_COMPRESSED, 8);
+        w.writeBits(13, 8); // UNQ-1
+        w.writeSize(14);
+        w.writeBits('a', 8); // range 'a'-'n'
+        w.writeBits('n', 8);
+        w.writeBits(12, 8); // maxLen-1
+        w.writeBits(0, 3); // minLen-1
+        for (int i=0; i<14; i++) {
+            w.writeBits(Math.min(i, 12), 4);
+        }
+        for (int i=0; i<14; i++) {
+            int len = Math.min(i+1, 13);
+            w.writeBits(i<13 ? (1 << len) - 2 : (1 << len) - 1, len); // canonical codes 0, 10, 110, ...
+        }
+        w.flush();
+        byte dst[] = new byte[14];
+        assertEquals(14, Huffman.decode(src, 0, w.position(), dst, 0));
+        assertArrayEquals("abcdefghijklmn".getBytes(), dst);
+    }
+
+    @Test
+    public void testExactSizeInput() throws CompressionException {
+        // the decoders read ahead, encoded data without slack behind it must decode as well
+        Random r = new Random(9);
+        byte a[] = mixed();
+        byte enc[] = new byte[Huffman.maxEncodedLength(a.length)];
+        byte dec[] = new byte[a.length];
+        List<byte[]> samples = new ArrayList<>();
+        samples.add(Arrays.copyOf(a, 1000));
+        HuffmanTable t = HuffmanTable.train(0, samples);
+        for (int i=0; i<3000; i++) {
+            int len = r.nextInt(i<2000 ? 20 : 5000);
+            int off = r.nextInt(a.length-len);
+            byte src[] = i%3==0 ? "abc".getBytes() : Arrays.copyOfRange(a, off, off+len);
+            byte exact[] = Arrays.copyOf(enc, Huffman.encode(src, 0, src.length, enc, 0));
+            assertEquals(src.length, Huffman.decode(exact, 0, exact.length, dec, 0));
+            assertArrayEquals(src, Arrays.copyOf(dec, src.length));
+            Huffman h = new Huffman();
+            h.decode(exact, 0, exact.length);
+            assertArrayEquals(src, Arrays.copyOf(h.getDecodedBuf(), h.getDecodedSize()));
+            exact = Arrays.copyOf(enc, Huffman.encodeWithTable(t, src, 0, src.length, enc, 0));
+            assertEquals(src.length, Huffman.decodeWithTable(t, exact, 0, exact.length, dec, 0));
+            assertArrayEquals(src, Arrays.copyOf(dec, src.length));
+        }
+    }
+
+    @Test
+    public void testTruncated() throws CompressionException {
+        byte a[] = mixed();
+        List<byte[]> samples = new ArrayList<>();
+        samples.add(Arrays.copyOf(a, 1000));
+        HuffmanTable t = HuffmanTable.train(0, samples);
+        byte enc[] = new byte[Huffman.maxEncodedLength(a.length)];
+        byte dec[] = new byte[a.length];
+        for (int len : new int[] { 0, 1, 5, 100, 2000, 50000 }) {
+            for (int withTable=0; withTable<2; withTable++) {
+                int n = withTable==0 ? Huffman.encode(a, 0, len, enc, 0) : Huffman.encodeWithTable(t, a, 0, len, enc, 0);
+                for (int k : new int[] { 0, 1, n/2, n-1 }) {
+                    try {
+                        if (withTable==0) {
+                            Huffman.decode(enc, 0, k, dec, 0);
+                        }
+                        else {
+                            Huffman.decodeWithTable(t, enc, 0, k, dec, 0);
+                        }
+                        fail("no error on " + k + " of " + n + " bytes");
+                    }
+                    catch (CompressionException e) {
+                        // expected
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testStaticTable() throws CompressionException {
+        Random r = new Random(7);
+        List<byte[]> records = new ArrayList<>();
+        for (int i=0; i<2000; i++) {
+            records.add(("<title>Title " + r.nextInt(100000) + "</title><author>Author " + Integer.toHexString(r.nextInt()) + "</author>").getBytes());
+        }
+        HuffmanTable t = HuffmanTable.train(3, records.subList(0, 1000));
+        HuffmanTable copy = HuffmanTable.fromByteArray(t.toByteArray());
+        assertEquals(3, copy.getId());
+        assertArrayEquals(t.getCodeLengths(), copy.getCodeLengths());
+
+        byte enc[] = new byte[200];
+        byte dec[] = new byte[100];
+        int withTable = 0;
+        int withoutTable = 0;
+        for (byte a[] : records.subList(1000, 2000)) {
+            int n = Huffman.encodeWithTable(t, a, 0, a.length, enc, 0);
+            assertEquals(Huffman.MODE_STATIC_TABLE, enc[0]);
+            assertEquals(a.length, Huffman.decodedLength(enc, 0));
+            assertEquals(a.length, Huffman.decodeWithTable(copy, enc, 0, n, dec, 0));
+            assertArrayEquals(a, Arrays.copyOf(dec, a.length));
+            withTable += n;
+            withoutTable += Huffman.encode(a, 0, a.length, enc, 0);
+        }
+        assertTrue(withTable < withoutTable * 3 / 4);
+
+        // byte values that are not in the samples have codes as well
+        byte a[] = { 0, (byte)0xff, ' ', '~', '~', '~' };
+        int n = Huffman.encodeWithTable(t, a, 0, a.length, enc, 0);
+        assertEquals(a.length, Huffman.decodeWithTable(t, enc, 0, n, dec, 0));
+        assertArrayEquals(a, Arrays.copyOf(dec, a.length));
+
+        // without a code for every byte value the input is stored
+        byte lengths[] = new byte[256];
+        lengths['a'] = 1;
+        lengths['b'] = 1;
+        HuffmanTable ab = new HuffmanTable(4, lengths);
+        a = "abbaab".getBytes();
+        n = Huffman.encodeWithTable(ab, a, 0, a.length, enc, 0);
+        assertEquals(Huffman.MODE_STATIC_TABLE, enc[0]);
+        assertEquals(4, n);
+        assertEquals(a.length, Huffman.decodeWithTable(ab, enc, 0, n, dec, 0));
+        assertArrayEquals(a, Arrays.copyOf(dec, a.length));
+        a = "abc".getBytes();
+        n = Huffman.encodeWithTable(ab, a, 0, a.length, enc, 0);
+        assertEquals(Huffman.MODE_UNCOMPRESSED, enc[0]);
+        assertEquals(a.length, Huffman.decodeWithTable(ab, enc, 0, n, dec, 0));
+        assertArrayEquals(a, Arrays.copyOf(dec, a.length));
+    }
+
+    @Test(expected = CompressionException.class)
+    public void testStaticTableMismatch() throws CompressionException {
+        byte a[] = "static table".getBytes();
+        List<byte[]> samples = new ArrayList<>();
+        samples.add(a);
+        byte enc[] = new byte[Huffman.maxEncodedLength(a.length)];
+        int n = Huffman.encodeWithTable(HuffmanTable.train(1, samples), a, 0, a.length, enc, 0);
+        Huffman.decodeWithTable(HuffmanTable.train(2, samples), enc, 0, n, new byte[a.length], 0);
+    }
+
     @Ignore
     @Test
     public void testX() throws Throwable {
@@ -5,7 +5,15 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
 
 @RunWith(JUnit4.class)
 public class LZ7Test {
@@ -19,6 +27,19 @@ public class LZ7Test {
         Assert.assertArrayEquals(a, b);
     }
 
+    @Test
+    public void testShortPeriodRuns() throws CompressionException {
+        LZ7 lz7 = new LZ7();
+        StringBuilder sb = new StringBuilder();
+        for (int period=1; period<=20; period++) {
+            for (int i=0; i<500; i++) {
+                sb.append((char)('a' + i % period));
+            }
+        }
+        byte[] a = sb.toString().getBytes(StandardCharsets.UTF_8);
+        Assert.assertArrayEquals(a, lz7.decompress(lz7.compress(a)));
+    }
+
     @Test
     public void testRepeatSameWord() throws CompressionException {
         LZ7 lz7 = new LZ7();
@@ -45,4 +66,267 @@ public class LZ7Test {
         byte b[] = lz7.decompress(lz7.compress(a));
         Assert.assertArrayEquals(a, b);
     }
+
+    @Test
+    public void testOutputUnchanged() throws CompressionException {
+        // expected values were produced by the original linear-scan compressor
+        LZ7 lz7 = new LZ7();
+        String s[][] = {
+                { "hallo a hallo b hallo c hallo d hallo e hallo", "LZ71A-C (hallo a '!(b'!(c'!(d' (e" },
+                { "<a x=\"1\"><b>text</b><b>text2</b><b>more text</b></a><a x=\"2\"><b>text</b></a>",
+                        "LZ71B,_5+<a x=\"1\"><b>text</b>'!,27#<more 2A4/a><'(A42 8" },
+                { "abababababcabcabcabcaaaaaaaaaaaaaaaaab", "LZ71A&+\"\"ab'$#c#*! 3" } };
+        for (String t[] : s) {
+            byte c[] = lz7.compress(t[0].getBytes(StandardCharsets.UTF_8));
+            Assert.assertEquals(t[1], new String(c, StandardCharsets.UTF_8));
+            Assert.assertEquals(t[0], new String(lz7.decompress(c), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void testLongLiteralRun() {
+        // more than 100 length bytes used to overflow the sequence buffer
+        LZ7 lz7 = new LZ7();
+        byte a[] = new byte[20000];
+        new Random(1).nextBytes(a);
+        byte c[] = lz7.compress(a);
+        Assert.assertTrue(c.length <= LZ7.maxCompressedLength(a.length));
+        Assert.assertArrayEquals(a, lz7.decompress(c));
+    }
+
+    @Test
+    public void testCallerSuppliedBuffers() throws CompressionException {
+        LZ7 lz7 = new LZ7();
+        byte a[] = "<a x=\"1\"><b>text</b><b>text2</b><b>more text</b></a>".getBytes(StandardCharsets.UTF_8);
+        byte src[] = new byte[a.length + 10];
+        System.arraycopy(a, 0, src, 3, a.length);
+        byte c[] = new byte[LZ7.maxCompressedLength(a.length) + 5];
+        for (int i=0; i<3; i++) {
+            int cLen = lz7.compressInto(src, 3, a.length, c, 5);
+            Assert.assertArrayEquals(lz7.compress(a), Arrays.copyOfRange(c, 5, 5 + cLen));
+            Assert.assertEquals(a.length, LZ7.decompressedLength(c, 5));
+            byte d[] = new byte[a.length + 2];
+            Assert.assertEquals(a.length, lz7.decompressInto(c, 5, cLen, d, 2));
+            Assert.assertArrayEquals(a, Arrays.copyOfRange(d, 2, d.length));
+        }
+    }
+
+    @Test
+    public void testOffsetBeforeDestination() throws CompressionException {
+        // length 4, one literal 'x' and a match of 3, offset 1 repeats it, offset 3 reaches before dstOff
+        byte ok[] = "LZ71$$!x".getBytes(StandardCharsets.US_ASCII);
+        byte bad[] = "LZ71$$#x".getBytes(StandardCharsets.US_ASCII);
+        byte d[] = new byte[8 + 4];
+        Arrays.fill(d, (byte)'S');
+        LZ7 lz7 = new LZ7();
+        Assert.assertEquals(4, lz7.decompressInto(ok, 0, ok.length, d, 8));
+        Assert.assertEquals("xxxx", new String(d, 8, 4, StandardCharsets.US_ASCII));
+        for (int dstOff : new int[] { 0, 8 }) {
+            try {
+                lz7.decompressInto(bad, 0, bad.length, d, dstOff);
+                Assert.fail();
+            }
+            catch (CompressionException e) {
+                Assert.assertEquals("LZ7: invalid offset", e.getMessage());
+            }
+        }
+        // an offset of 7 characters overflows to a negative int
+        byte overflow[] = "LZ71$$______?x".getBytes(StandardCharsets.US_ASCII);
+        try {
+            lz7.decompressInto(overflow, 0, overflow.length, d, 8);
+            Assert.fail();
+        }
+        catch (CompressionException e) {
+            Assert.assertEquals("LZ7: invalid offset", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testCharacters() throws IOException, CompressionException {
+        LZ7 lz7 = new LZ7();
+        byte a[] = "<a x=\"1\">t\u00ebxt</a><a x=\"2\">t\u00ebxt</a>".getBytes(StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder("prefix:");
+        lz7.compress(a, sb);
+        Assert.assertEquals("prefix:" + new String(lz7.compress(a), StandardCharsets.ISO_8859_1), sb.toString());
+        Assert.assertArrayEquals(a, lz7.decompress(sb, 7, sb.length()-7));
+    }
+
+    @Test
+    public void testStreams() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        Random r = new Random(1);
+        while (sb.length() < 100000) {
+            sb.append("<record id=\"").append(r.nextInt(1000)).append("\">\u00fcn\u00efc\u00f6d\u00e9</record>\n");
+        }
+        byte a[] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        StringWriter w = new StringWriter();
+        LZ7OutputStream os = new LZ7OutputStream(w, 4096);
+        os.write(a, 0, 1000);
+        os.flush();
+        for (int i=1000; i<a.length; i+=777) {
+            os.write(a, i, Math.min(777, a.length-i));
+        }
+        os.close();
+        Assert.assertTrue(w.toString().length() < a.length / 2);
+
+        LZ7InputStream is = new LZ7InputStream(new StringReader(w.toString()));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte b[] = new byte[500];
+        int n;
+        while ((n=is.read(b, 0, b.length))>=0) {
+            bos.write(b, 0, n);
+        }
+        Assert.assertArrayEquals(a, bos.toByteArray());
+    }
+
+    @Test
+    public void testXmlSafe() throws IOException, CompressionException {
+        StringBuilder sb = new StringBuilder();
+        Random r = new Random(1);
+        while (sb.length() < 20000) {
+            sb.append("<record id=\"").append(r.nextInt(1000)).append("\" t='&amp;'>\u00fcn\u00efc\u00f6d\u00e9~</record>\n");
+        }
+        byte a[] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        byte all[] = new byte[0x300];
+        for (int i=0; i<all.length; i++) {
+            all[i] = (byte)(i * 7);
+        }
+        LZ7 lz7 = new LZ7(true);
+        for (byte b[] : new byte[][] { a, all, new byte[0] }) {
+            byte c[] = lz7.compress(b);
+            for (byte ch : c) {
+                Assert.assertTrue(ch>=0x20 && ch<0x7f && "\"&'<>".indexOf(ch)<0);
+            }
+            Assert.assertArrayEquals(b, new LZ7().decompress(c));
+            String str = new String(c, StandardCharsets.US_ASCII);
+            Assert.assertArrayEquals(b, lz7.decompress(str, 0, str.length()));
+        }
+
+        StringWriter w = new StringWriter();
+        LZ7OutputStream os = new LZ7OutputStream(w, 4096, true);
+        os.write(a);
+        os.close();
+        LZ7InputStream is = new LZ7InputStream(new StringReader(w.toString()));
+        byte b[] = new byte[a.length];
+        StreamIO.readFully(is, b, 0, b.length);
+        Assert.assertArrayEquals(a, b);
+        Assert.assertEquals(-1, is.read());
+    }
+
+    @Test(timeout = 5000)
+    public void testZeroOffset() throws IOException {
+        // length 10, one literal 'x' followed by a match at offset 0
+        String str = "LZ71*$ x";
+        byte c[] = str.getBytes(StandardCharsets.US_ASCII);
+        try {
+            new LZ7().decompress(c);
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("LZ7: invalid offset", e.getMessage());
+        }
+        try {
+            new LZ7().decompress(str, 0, str.length());
+            Assert.fail();
+        }
+        catch (CompressionException e) {
+            Assert.assertEquals("LZ7: invalid offset", e.getMessage());
+        }
+        try {
+            new LZ7InputStream(new StringReader(str)).read();
+            Assert.fail();
+        }
+        catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCorruptOrTruncatedStream() throws IOException {
+        // a match reaching before the start of the block and 2 literals in a block of 1 byte
+        // are corrupt data, not the end of the data
+        for (String corrupt : new String[] { "LZ71*$#x", "LZ71!( ab" }) {
+            try {
+                new LZ7InputStream(new StringReader(corrupt)).read();
+                Assert.fail();
+            }
+            catch (EOFException e) {
+                Assert.fail("corrupt data reported as end of data: " + corrupt);
+            }
+            catch (IOException e) {
+                Assert.assertTrue(e.getCause() instanceof CompressionException);
+            }
+        }
+        String str = new String(new LZ7().compress("hallo hallo hallo hallo".getBytes(StandardCharsets.UTF_8)), StandardCharsets.ISO_8859_1);
+        for (int n=1; n<str.length(); n++) {
+            try {
+                new LZ7InputStream(new StringReader(str.substring(0, n))).read();
+                Assert.fail("truncated to " + n + " characters accepted");
+            }
+            catch (EOFException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testInvalidCharacter() throws IOException {
+        LZ7 lz7 = new LZ7();
+        String str = new String(lz7.compress("hallo hallo hallo hallo \u00e9".getBytes(StandardCharsets.UTF_8)), StandardCharsets.ISO_8859_1);
+        for (int i=4; i<str.length(); i++) {
+            StringBuilder sb = new StringBuilder(str);
+            sb.setCharAt(i, (char)(str.charAt(i) + 0x100));
+            try {
+                lz7.decompress(sb, 0, sb.length());
+                Assert.fail("char above 0xff accepted at " + i);
+            }
+            catch (CompressionException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testInteractiveReader() throws IOException {
+        StringWriter w = new StringWriter();
+        LZ7OutputStream os = new LZ7OutputStream(w);
+        byte a[] = "<a>hallo</a><a>hallo</a>".getBytes(StandardCharsets.UTF_8);
+        os.write(a);
+        os.flush();
+        // a peer that sent one block and waits for the answer, reading further would block
+        final String sent = w.toString();
+        Reader peer = new Reader() {
+            private int p = 0;
+
+            @Override
+            public int read(char cbuf[], int off, int len) throws IOException {
+                if (p==sent.length()) {
+                    throw new IOException("would block");
+                }
+                int n = Math.min(len, 3);
+                n = Math.min(n, sent.length()-p);
+                sent.getChars(p, p+n, cbuf, off);
+                p += n;
+                return n;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        LZ7InputStream is = new LZ7InputStream(peer);
+        byte b[] = new byte[a.length];
+        StreamIO.readFully(is, b, 0, b.length);
+        Assert.assertArrayEquals(a, b);
+    }
+
+    @Test(expected = IOException.class)
+    public void testTruncatedStream() throws IOException {
+        StringWriter w = new StringWriter();
+        LZ7OutputStream os = new LZ7OutputStream(w);
+        os.write("hallo hallo hallo hallo".getBytes(StandardCharsets.UTF_8));
+        os.close();
+        LZ7InputStream is = new LZ7InputStream(new StringReader(w.toString().substring(0, w.toString().length()-2)));
+        while (is.read()>=0);
+    }
 }
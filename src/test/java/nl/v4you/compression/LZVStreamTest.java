@@ -0,0 +1,196 @@
+package nl.v4you.compression;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+@RunWith(JUnit4.class)
+public class LZVStreamTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] xml(int records) {
+        StringBuilder sb = new StringBuilder("<records>");
+        Random r = new Random(42);
+        for (int i=0; i<records; i++) {
+            sb.append("<record id=\"").append(r.nextInt(100000)).append("\">");
+            sb.append("<title>Title ").append(r.nextInt(1000)).append("</title>");
+            sb.append("</record>\n");
+        }
+        sb.append("</records>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] compress(byte a[], int blockSize, boolean checksum, int chunk) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        LZVOutputStream os = new LZVOutputStream(bos, blockSize, checksum);
+        for (int i=0; i<a.length; i+=chunk) {
+            os.write(a, i, Math.min(chunk, a.length-i));
+        }
+        os.close();
+        return bos.toByteArray();
+    }
+
+    private static byte[] decompress(byte c[], int chunk) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        LZVInputStream is = new LZVInputStream(new ByteArrayInputStream(c));
+        byte buf[] = new byte[chunk];
+        int n;
+        while ((n=is.read(buf, 0, chunk))>=0) {
+            bos.write(buf, 0, n);
+        }
+        is.close();
+        return bos.toByteArray();
+    }
+
+    @Test
+    public void testEmpty() throws IOException {
+        Assert.assertArrayEquals(new byte[0], decompress(compress(new byte[0], 1024, true, 1), 1));
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        byte a[] = xml(20000);
+        for (int blockSize : new int[] { 1024, 65536, 1 << 20 }) {
+            for (int chunk : new int[] { 1, 1000, 100000 }) {
+                Assert.assertArrayEquals(a, decompress(compress(a, blockSize, chunk!=1000, chunk), 777));
+            }
+        }
+    }
+
+    @Test
+    public void testWindowAcrossBlocks() throws IOException {
+        byte a[] = xml(20000);
+        byte c[] = compress(a, 1024, false, a.length);
+        // small blocks should still compress about as well as a single block
+        Assert.assertTrue(c.length < new LZV().compress(a).length * 11 / 10);
+    }
+
+    @Test
+    public void testSingleBytes() throws IOException {
+        byte a[] = xml(100);
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        LZVOutputStream os = new LZVOutputStream(bos);
+        for (byte b : a) {
+            os.write(b);
+            if (b=='\n') {
+                os.flush();
+            }
+        }
+        os.close();
+        LZVInputStream is = new LZVInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        for (byte b : a) {
+            Assert.assertEquals(b & 0xff, is.read());
+        }
+        Assert.assertEquals(-1, is.read());
+    }
+
+    @Test
+    public void testStoredBlocks() throws IOException {
+        byte a[] = new byte[100000];
+        new Random(1).nextBytes(a);
+        System.arraycopy(xml(500), 0, a, 30000, 20000);
+        byte c[] = compress(a, 8192, true, 5000);
+        // random blocks are stored, only the xml in the middle is compressed
+        Assert.assertTrue(c.length < a.length);
+        Assert.assertArrayEquals(a, decompress(c, 1000));
+        ForkJoinPool pool = new ForkJoinPool(2);
+        LZVParallel lzv = new LZVParallel(pool, 8192, true);
+        c = lzv.compress(a);
+        Assert.assertTrue(c.length < a.length);
+        Assert.assertArrayEquals(a, lzv.decompress(c));
+        Assert.assertArrayEquals(a, decompress(c, 1000));
+        pool.shutdown();
+    }
+
+    @Test(expected = IOException.class)
+    public void testChecksumMismatch() throws IOException {
+        byte c[] = compress(xml(100), 1024, true, 1000);
+        c[c.length-2] ^= 1;
+        decompress(c, 100);
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotAFrame() throws IOException {
+        new LZVInputStream(new ByteArrayInputStream(new LZV().compress(xml(10))));
+    }
+
+    @Test
+    public void testParallel() throws IOException {
+        byte a[] = xml(50000);
+        ForkJoinPool pool = new ForkJoinPool(4);
+        LZVParallel lzv = new LZVParallel(pool, 4096, true);
+        byte c[] = lzv.compress(a);
+        Assert.assertArrayEquals(a, lzv.decompress(c));
+        Assert.assertArrayEquals(a, decompress(c, 1000));
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        lzv.compress(new ByteArrayInputStream(a), bos);
+        Assert.assertArrayEquals(c, bos.toByteArray());
+        pool.shutdown();
+    }
+
+    @Test
+    public void testParallelDecompressesSequentialFrame() throws IOException {
+        byte a[] = xml(5000);
+        Assert.assertArrayEquals(a, new LZVParallel().decompress(compress(a, 1024, true, 1000)));
+        Assert.assertArrayEquals(new byte[0], new LZVParallel().decompress(new LZVParallel().compress(new byte[0])));
+    }
+
+    @Test
+    public void testRandomAccess() throws IOException {
+        byte a[] = xml(20000);
+        byte r[] = new byte[5000];
+        new Random(2).nextBytes(r);
+        System.arraycopy(r, 0, a, 100000, r.length); // stored blocks
+        File f = tmp.newFile();
+        LZVOutputStream os = new LZVOutputStream(new FileOutputStream(f), 1024, true, LZV.LEVEL_DEFAULT, true);
+        os.write(a, 0, 50000);
+        os.flush(); // short block
+        os.write(a, 50000, a.length-50000);
+        os.close();
+
+        byte c[] = new byte[(int)f.length()];
+        FileInputStream fis = new FileInputStream(f);
+        StreamIO.readFully(fis, c, 0, c.length);
+        fis.close();
+        Assert.assertArrayEquals(a, decompress(c, 1000));
+        Assert.assertArrayEquals(a, new LZVParallel().decompress(c));
+
+        try (LZVRandomAccess ra = new LZVRandomAccess(new FileInputStream(f).getChannel())) {
+            Assert.assertEquals(a.length, ra.length());
+            Random rnd = new Random(3);
+            for (int i=0; i<200; i++) {
+                int pos = rnd.nextInt(a.length);
+                int len = rnd.nextInt(i<100 ? 100 : 5000);
+                Assert.assertArrayEquals(Arrays.copyOfRange(a, pos, Math.min(a.length, pos+len)), ra.read(pos, len));
+            }
+            Assert.assertArrayEquals(a, ra.read(0, a.length));
+            Assert.assertEquals(-1, ra.read(a.length, new byte[1], 0, 1));
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testRandomAccessWithoutIndex() throws IOException {
+        File f = tmp.newFile();
+        FileOutputStream fos = new FileOutputStream(f);
+        fos.write(compress(xml(100), 1024, true, 1000));
+        fos.close();
+        new LZVRandomAccess(new FileInputStream(f).getChannel());
+    }
+}
@@ -0,0 +1,445 @@
+package nl.v4you.compression;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+@RunWith(JUnit4.class)
+public class LZVTest {
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] xml(int records) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><records>");
+        Random r = new Random(42);
+        for (int i=0; i<records; i++) {
+            sb.append("<record id=\"").append(r.nextInt(100000)).append("\">");
+            sb.append("<title>Title ").append(r.nextInt(1000)).append("</title>");
+            sb.append("<author>Author ").append(Integer.toHexString(r.nextInt())).append("</author>");
+            sb.append("</record>\n");
+        }
+        sb.append("</records>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] random(int len) {
+        byte a[] = new byte[len];
+        new Random(7).nextBytes(a);
+        return a;
+    }
+
+    private static void assertRoundTrip(byte a[]) {
+        LZV lzv = new LZV();
+        Assert.assertArrayEquals(a, lzv.decompress(lzv.compress(a)));
+    }
+
+    @Test
+    public void testEmpty() {
+        assertRoundTrip(new byte[0]);
+    }
+
+    @Test
+    public void testShort() {
+        assertRoundTrip("a".getBytes(StandardCharsets.UTF_8));
+        assertRoundTrip("ab".getBytes(StandardCharsets.UTF_8));
+        assertRoundTrip("aaaa".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRepeatSameWordBrokenByUniqueStrings() {
+        assertRoundTrip("hallo a hallo b hallo c hallo d hallo e hallo".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRepeatSingleChar() {
+        byte a[] = new byte[100000];
+        Arrays.fill(a, (byte)'a');
+        assertRoundTrip(a);
+        Assert.assertTrue(new LZV().compress(a).length < 1000);
+    }
+
+    @Test
+    public void testXmlLargerThanWindow() {
+        byte a[] = xml(5000);
+        LZV lzv = new LZV();
+        byte c[] = lzv.compress(a);
+        Assert.assertTrue(c.length < a.length / 2);
+        Assert.assertArrayEquals(a, lzv.decompress(c));
+    }
+
+    @Test
+    public void testIncompressible() {
+        byte a[] = random(100000);
+        byte c[] = new LZV().compress(a);
+        Assert.assertTrue(c.length <= LZV.maxCompressedLength(a.length));
+        Assert.assertEquals(3 + LZV.storedLength(a.length), c.length);
+        assertRoundTrip(a);
+    }
+
+    @Test
+    public void testInstanceReuse() {
+        LZV lzv = new LZV();
+        for (int i=0; i<10; i++) {
+            byte a[] = xml(i * 100);
+            Assert.assertArrayEquals(a, lzv.decompress(lzv.compress(a)));
+        }
+    }
+
+    @Test
+    public void testDecompressLegacyStream() {
+        // produced by the original linear-scan compressor
+        byte c[] = {
+                0x2d, (byte)0x83, 0x68, 0x61, 0x6c, 0x6c, 0x6f, 0x20, 0x61, 0x20, 0x08, 0x14, 0x62, 0x08, 0x14,
+                0x63, 0x08, 0x14, 0x64, 0x08, 0x13, 0x65, 0x08 };
+        Assert.assertEquals("hallo a hallo b hallo c hallo d hallo e hallo",
+                new String(new LZV().decompress(c), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testCallerSuppliedBuffers() throws CompressionException {
+        LZV lzv = new LZV();
+        byte a[] = xml(200);
+        byte src[] = new byte[a.length + 20];
+        System.arraycopy(a, 0, src, 7, a.length);
+        byte c[] = new byte[LZV.maxCompressedLength(a.length) + 3];
+        int cLen = lzv.compress(src, 7, a.length, c, 3);
+        Assert.assertEquals(a.length, LZV.decompressedLength(c, 3));
+
+        byte d[] = new byte[a.length + 5];
+        Assert.assertEquals(a.length, lzv.decompress(c, 3, cLen, d, 5));
+        Assert.assertArrayEquals(a, Arrays.copyOfRange(d, 5, d.length));
+    }
+
+    @Test
+    public void testShortPeriodRuns() throws CompressionException {
+        // overlapping matches of every period, decoded in front of bytes that must stay untouched
+        StringBuilder sb = new StringBuilder();
+        for (int period=1; period<=40; period++) {
+            for (int len=1; len<300; len+=period*7) {
+                for (int i=0; i<len; i++) {
+                    sb.append((char)('a' + i % period % 26));
+                }
+                sb.append('|');
+            }
+        }
+        byte a[] = sb.toString().getBytes(StandardCharsets.UTF_8);
+        LZV lzv = new LZV();
+        byte c[] = lzv.compress(a);
+        byte d[] = new byte[a.length + 64];
+        Arrays.fill(d, (byte)'#');
+        Assert.assertEquals(a.length, lzv.decompress(c, 0, c.length, d, 0));
+        Assert.assertArrayEquals(a, Arrays.copyOf(d, a.length));
+        for (int i=a.length; i<d.length; i++) {
+            Assert.assertEquals('#', d[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testDestinationTooSmall() throws CompressionException {
+        LZV lzv = new LZV();
+        byte a[] = xml(10);
+        byte c[] = lzv.compress(a);
+        lzv.decompress(c, 0, c.length, new byte[a.length-1], 0);
+    }
+
+    @Test(expected = CompressionException.class)
+    public void testTruncatedInput() throws CompressionException {
+        LZV lzv = new LZV();
+        byte a[] = xml(10);
+        byte c[] = lzv.compress(a);
+        lzv.decompress(c, 0, c.length-1, new byte[a.length], 0);
+    }
+
+    @Test
+    public void testTruncatedAtEndOfArray() {
+        for (int windowLog : new int[] { 0, 18 }) {
+            LZV lzv = new LZV(LZV.LEVEL_LAZY, windowLog);
+            byte c[] = lzv.compress(xml(10));
+            byte d[] = new byte[LZV.decompressedLength(c, 0)];
+            for (int n=0; n<c.length; n++) {
+                byte t[] = Arrays.copyOf(c, n);
+                try {
+                    lzv.decompress(t, 0, t.length, d, 0);
+                    Assert.fail("truncated to " + n + " bytes accepted");
+                }
+                catch (CompressionException e) {
+                    // expected
+                }
+                try {
+                    lzv.decompress(ByteBuffer.wrap(t), ByteBuffer.allocateDirect(d.length));
+                    Assert.fail("truncated to " + n + " bytes accepted");
+                }
+                catch (CompressionException e) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testLiteralLongerThanOutput() {
+        // length 2, but the token announces 5 literals
+        byte c[] = { 2, 0x50, 'a', 'b', 'c', 'd', 'e', 0 };
+        byte d[] = new byte[2 + 6];
+        Arrays.fill(d, (byte)'#');
+        try {
+            new LZV().decompress(c, 0, c.length, d, 0);
+            Assert.fail();
+        }
+        catch (CompressionException e) {
+            Assert.assertEquals("LZV: invalid length", e.getMessage());
+        }
+        for (int i=2; i<d.length; i++) {
+            Assert.assertEquals('#', d[i]);
+        }
+    }
+
+    @Test
+    public void testOffsetBeforeDestination() throws CompressionException {
+        // 'a' followed by a match of 4 bytes, offset 1 repeats it, offset 3 reaches before dstOff
+        byte ok[] = { 5, 0x11, 'a', 1 };
+        byte bad[] = { 5, 0x11, 'a', 3 };
+        byte d[] = new byte[8 + 5];
+        Arrays.fill(d, (byte)'S');
+        Assert.assertEquals(5, new LZV().decompress(ok, 0, ok.length, d, 8));
+        Assert.assertEquals("aaaaa", new String(d, 8, 5, StandardCharsets.UTF_8));
+        try {
+            new LZV().decompress(bad, 0, bad.length, d, 8);
+            Assert.fail();
+        }
+        catch (CompressionException e) {
+            Assert.assertEquals("LZV: invalid offset", e.getMessage());
+        }
+        for (boolean direct : new boolean[] { false, true }) {
+            ByteBuffer b = buffer(direct, 5);
+            try {
+                new LZV().decompress(ByteBuffer.wrap(bad), b);
+                Assert.fail();
+            }
+            catch (CompressionException e) {
+                Assert.assertEquals("LZV: invalid offset", e.getMessage());
+            }
+        }
+    }
+
+    private static ByteBuffer buffer(boolean direct, int len) {
+        ByteBuffer b = direct ? ByteBuffer.allocateDirect(len + 20) : ByteBuffer.allocate(len + 20);
+        ((Buffer)b).position(10);
+        ((Buffer)b).limit(10 + len);
+        return b;
+    }
+
+    @Test
+    public void testByteBuffers() throws CompressionException {
+        LZV lzv = new LZV();
+        byte a[] = xml(500);
+        for (boolean directIn : new boolean[] { false, true }) {
+            for (boolean directOut : new boolean[] { false, true }) {
+                ByteBuffer src = buffer(directIn, a.length);
+                src.duplicate().put(a);
+                ByteBuffer c = buffer(directOut, LZV.maxCompressedLength(a.length));
+                int cLen = lzv.compress(src, c);
+                Assert.assertFalse(src.hasRemaining());
+                Assert.assertEquals(10 + cLen, c.position());
+                ((Buffer)c).flip().position(10);
+
+                for (boolean direct : new boolean[] { false, true }) {
+                    ByteBuffer d = buffer(direct, a.length);
+                    ByteBuffer cc = c.duplicate();
+                    Assert.assertEquals(a.length, LZV.decompressedLength(cc));
+                    Assert.assertEquals(a.length, lzv.decompress(cc, d));
+                    Assert.assertFalse(cc.hasRemaining());
+                    ((Buffer)d).flip().position(10);
+                    byte b[] = new byte[a.length];
+                    d.get(b);
+                    Assert.assertArrayEquals(a, b);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testCompressFile() throws IOException {
+        byte a[] = xml(5000);
+        File in = tmp.newFile();
+        File out = tmp.newFile();
+        FileOutputStream fos = new FileOutputStream(in);
+        fos.write(a);
+        fos.close();
+        LZV.compressFile(in, out);
+        LZVInputStream is = new LZVInputStream(new FileInputStream(out));
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte buf[] = new byte[4096];
+        int n;
+        while ((n=is.read(buf))>=0) {
+            bos.write(buf, 0, n);
+        }
+        is.close();
+        Assert.assertArrayEquals(a, bos.toByteArray());
+    }
+
+    private static byte[] record(Random r) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        sb.append("<rec:record xmlns:rec=\"http://example.org/ns/record\" xmlns:dc=\"http://purl.org/dc/elements/1.1/\">");
+        int fields = 10 + r.nextInt(30);
+        for (int i=0; i<fields; i++) {
+            sb.append("<dc:subject scheme=\"local\">Subject ").append(r.nextInt(100000)).append("</dc:subject>");
+        }
+        sb.append("<dc:title>").append(Long.toHexString(r.nextLong())).append("</dc:title></rec:record>");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDictionary() {
+        Random r = new Random(1);
+        List<byte[]> samples = new ArrayList<>();
+        for (int i=0; i<200; i++) {
+            samples.add(record(r));
+        }
+        LZVDictionary dict = LZVDictionary.train(7, samples, 4096);
+        Assert.assertTrue(dict.size()<=4096);
+
+        LZV lzv = new LZV();
+        int plain = 0;
+        int withDict = 0;
+        for (int i=0; i<50; i++) {
+            byte a[] = record(r);
+            byte c[] = lzv.compress(a, dict);
+            Assert.assertEquals(7, LZV.dictionaryId(c, 0));
+            Assert.assertArrayEquals(a, lzv.decompress(c, dict));
+            plain += lzv.compress(a).length;
+            withDict += c.length;
+        }
+        Assert.assertTrue(withDict < plain * 3 / 4);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testWrongDictionary() {
+        LZV lzv = new LZV();
+        byte a[] = xml(10);
+        byte c[] = lzv.compress(a, new LZVDictionary(1, xml(5)));
+        lzv.decompress(c, new LZVDictionary(2, xml(5)));
+    }
+
+    @Test
+    public void testLevels() {
+        byte inputs[][] = { xml(3000), random(50000), new byte[20000], "abcabcabd".getBytes(StandardCharsets.UTF_8) };
+        for (byte a[] : inputs) {
+            int sizes[] = new int[LZV.LEVEL_MAX + 1];
+            for (int level=1; level<=LZV.LEVEL_MAX; level++) {
+                LZV lzv = new LZV(level);
+                byte c[] = lzv.compress(a);
+                Assert.assertTrue(c.length <= LZV.maxCompressedLength(a.length));
+                Assert.assertArrayEquals(a, new LZV().decompress(c));
+                sizes[level] = c.length;
+            }
+            Assert.assertTrue(sizes[LZV.LEVEL_LAZY] <= sizes[LZV.LEVEL_DEFAULT]);
+            Assert.assertTrue(sizes[LZV.LEVEL_MAX] <= sizes[LZV.LEVEL_LAZY]);
+        }
+    }
+
+    @Test
+    public void testLevelsWithDictionary() {
+        LZVDictionary dict = new LZVDictionary(1, xml(100));
+        byte a[] = xml(120);
+        for (int level=1; level<=LZV.LEVEL_MAX; level++) {
+            LZV lzv = new LZV(level);
+            Assert.assertArrayEquals(a, lzv.decompress(lzv.compress(a, dict), dict));
+        }
+    }
+
+    @Test
+    public void testLargeWindow() throws CompressionException {
+        // the same xml twice, 150 KB apart
+        byte x[] = xml(1000);
+        byte a[] = new byte[150000 + x.length];
+        System.arraycopy(x, 0, a, 0, x.length);
+        System.arraycopy(random(150000 - x.length), 0, a, x.length, 150000 - x.length);
+        System.arraycopy(x, 0, a, 150000, x.length);
+        // the legacy window cannot reach the first copy
+        int maxLen = new LZV().compress(a).length - new LZV().compress(x).length / 2;
+        for (int level : new int[] { LZV.LEVEL_FAST, LZV.LEVEL_LAZY, LZV.LEVEL_MAX }) {
+            LZV lzv = new LZV(level, 18);
+            byte c[] = lzv.compress(a);
+            Assert.assertEquals((byte)0x80, c[0]);
+            Assert.assertEquals(0, c[1]);
+            Assert.assertTrue(c.length <= LZV.maxCompressedLength(a.length));
+            Assert.assertTrue(c.length < maxLen);
+            Assert.assertEquals(a.length, LZV.decompressedLength(c, 0));
+            Assert.assertArrayEquals(a, new LZV().decompress(c));
+
+            ByteBuffer d = ByteBuffer.allocateDirect(a.length);
+            ByteBuffer cb = ByteBuffer.allocateDirect(c.length).put(c);
+            ((Buffer)cb).flip();
+            new LZV().decompress(cb, d);
+            byte b[] = new byte[a.length];
+            ((Buffer)d).flip();
+            d.get(b);
+            Assert.assertArrayEquals(a, b);
+        }
+        LZVDictionary dict = new LZVDictionary(1, xml(100));
+        LZV lzv = new LZV(LZV.LEVEL_DEFAULT, LZV.WINDOW_LOG_MIN);
+        Assert.assertArrayEquals(a, lzv.decompress(lzv.compress(a, dict), dict));
+    }
+
+    @Test
+    public void testLongDistanceMatches() {
+        // random sections repeated far outside the 64 KB window
+        byte r[] = random(300000);
+        byte a[] = new byte[1000000];
+        System.arraycopy(r, 0, a, 0, r.length);
+        System.arraycopy(r, 0, a, 500000, r.length);
+        System.arraycopy(r, 1000, a, 850000, 150000);
+        for (int level : new int[] { LZV.LEVEL_FAST, LZV.LEVEL_LAZY, LZV.LEVEL_MAX - 2 }) {
+            byte c[] = new LZV(level, LZV.WINDOW_LOG_MIN).compress(a);
+            Assert.assertTrue(c.length < r.length + 20000);
+            Assert.assertArrayEquals(a, new LZV().decompress(c));
+        }
+    }
+
+    @Test
+    public void testDelta() {
+        byte v1[] = xml(2000);
+        byte v2[] = Arrays.copyOf(v1, v1.length + 20);
+        v2[100] = 'X';
+        v2[50000] = 'Y';
+        System.arraycopy("<record id=\"1\"/>".getBytes(StandardCharsets.UTF_8), 0, v2, v1.length, 16);
+        for (LZV lzv : new LZV[] { new LZV(), new LZV(LZV.LEVEL_FAST, 17), new LZV(LZV.LEVEL_MAX, 17) }) {
+            byte delta[] = lzv.compressDelta(v1, v2);
+            Assert.assertArrayEquals(v2, lzv.decompressDelta(v1, delta));
+            Assert.assertArrayEquals(v1, lzv.decompressDelta(v2, lzv.compressDelta(v2, v1)));
+            Assert.assertArrayEquals(v1, lzv.decompressDelta(new byte[0], lzv.compressDelta(new byte[0], v1)));
+        }
+        // the whole reference is in reach, long matches still cost one length byte per 255 bytes
+        Assert.assertTrue(new LZV(LZV.LEVEL_DEFAULT, 18).compressDelta(v1, v2).length < v1.length / 100);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testDeltaWrongReference() {
+        LZV lzv = new LZV();
+        byte a[] = xml(10);
+        lzv.decompressDelta(xml(11), lzv.compressDelta(a, a));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidWindowLog() {
+        new LZV(LZV.LEVEL_DEFAULT, LZV.WINDOW_LOG_MAX + 1);
+    }
+}
@@ -1,11 +1,15 @@
 package nl.v4you.xml;
 
+import nl.v4you.compression.LZ7;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 
+import java.nio.charset.StandardCharsets;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 @RunWith(JUnit4.class)
 public class StringXmlTest {
@@ -99,4 +103,11 @@ public class StringXmlTest {
         StringXml s = new StringXml();
         s.node("n1").val(""+(char)0x1).end().toString();
     }
+
+    @Test
+    public void testLZ7XmlSafeNotEscaped() throws StringXmlException {
+        byte a[] = "<a href=\"x&amp;y\">'\u00e9'</a>\t<a href=\"x&amp;y\"/>".getBytes(StandardCharsets.UTF_8);
+        String c = new String(new LZ7(true).compress(a), StandardCharsets.US_ASCII);
+        assertSame(c, new StringXml().escape(c));
+    }
 }